@@ -1,86 +1,160 @@
 import network.DisconnectException;
+import network.ReldatConnectionPool;
 import network.ReldatSocket;
+import network.ReldatStream;
 
-import java.io.FileOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Stream;
 
 public class Client {
+    private static final String USAGE =
+            "USAGE: ./reldat-client.sh HOST:PORT WINDOW_SIZE [blocking|channel] [batch CONNECTIONS PATH...]";
+
+    /** The size of the buffers files are streamed through */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Files from this size on are mapped rather than streamed */
+    private static final int MAP_THRESHOLD = 1024 * 1024;
+
+    /** The size of the frames a mapped file is sent in on a connection */
+    private static final int MAP_FRAME_SIZE = 1024 * 1024;
+
+    /** The size of a frame header: the request ID and the length of the data */
+    private static final int HEADER_SIZE = 8;
+
+    /** The most files sent at the same time on one connection or stream */
+    private static final int PIPELINE_DEPTH = 32;
+
+    /** The most streams files are transformed on in parallel */
+    private static final int MAX_STREAMS = 8;
+
+    /** The most files a batch connection takes from its queue at a time */
+    private static final int BATCH_SIZE = 4 * PIPELINE_DEPTH;
+
+    /** Inserted before the extension of a transformed file's name */
+    private static final String RECEIVED_SUFFIX = "-received";
+
+    /** The ID of the next request */
+    private static int nextRequestId = 1;
+
     public static void main(String[] args) {
         // Parse input args
         SocketAddress address = null;
-        int windowSize = 0;
+        int windowSize = 0,
+                connections = 0;
+        ReldatSocket.Engine engine = ReldatSocket.Engine.BLOCKING;
+        List<String> batch = null;
         try {
             String[] hostPort = args[0].split(":");
             address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
             windowSize = Integer.parseInt(args[1]);
+            int i = 2;
+            if (args.length > i && !args[i].equalsIgnoreCase("batch")) {
+                engine = ReldatSocket.Engine.valueOf(args[i++].toUpperCase());
+            }
+            if (args.length > i) {
+                if (!args[i].equalsIgnoreCase("batch") || args.length < i + 3) throw new IllegalArgumentException();
+                connections = Integer.parseInt(args[i + 1]);
+                if (connections < 1) throw new IllegalArgumentException();
+                batch = Arrays.asList(args).subList(i + 2, args.length);
+            }
         } catch (Exception e) {
-            System.err.println("USAGE: ./reldat-client.sh HOST:PORT WINDOW_SIZE");
+            System.err.println(USAGE);
             System.exit(1);
         }
 
-        // Create a new socket and establish a connection
-        ReldatSocket sock = null;
+        if (batch != null) {
+            System.exit(runBatch(address, windowSize, engine, connections, batch) ? 0 : 1);
+        }
+
+        // Each command takes a connection from a pool, so one the server
+        // dropped while idle is replaced rather than ending the client
+        ReldatConnectionPool pool = newPool(windowSize, engine, true);
         try {
-            sock = new ReldatSocket(windowSize);
-            sock.connect(address);
+            ReldatSocket sock = pool.acquire(address);
             System.out.printf("Connected to %s\n", sock.getRemoteSocketAddress());
-            System.out.printf("NOTE: the connection will automatically be dropped after "
-                    + "%d seconds if no data is transferred\n", ReldatSocket.CONNECT_TIMEOUT / 1000);
+            pool.release(sock);
         } catch (IOException e) {
             System.err.println(e.getMessage());
             System.exit(1);
         }
 
         Scanner scanner = new Scanner(System.in);
-        while (sock.isConnected()) {
+        while (true) {
             System.out.print("Command: ");
             String command = scanner.nextLine();
 
             if (command.equalsIgnoreCase("disconnect")) {
-                sock.close();
+                pool.close();
                 System.out.println("Connection disconnected");
+                break;
             } else if (command.matches("^transform\\s.+$")) {
                 String[] split = command.split("\\s+");
-                String filename = split[1];
+                Map<String, Long> files = new LinkedHashMap<>();
+                for (int i = 1; i < split.length; ++i) {
+                    try {
+                        long length = Files.size(Paths.get(split[i]));
+                        if (length > Integer.MAX_VALUE) throw new IOException(split[i] + " is too large");
+                        files.put(split[i], length);
+                    } catch (IOException e) {
+                        System.err.printf("Cannot read file %s\n", e.getMessage());
+                    }
+                }
 
-                byte[] data = null;
-                byte[] length = null;
+                // Several files are transformed at once, each on its own
+                // stream, if the server supports them. Otherwise they are
+                // pipelined on the connection.
+                List<Request> requests = new ArrayList<>();
+                for (Map.Entry<String, Long> file : files.entrySet()) {
+                    Request request = new Request(file.getKey(), file.getValue());
+                    System.out.println("Writing response to " + request.outFile);
+                    requests.add(request);
+                }
+                ReldatSocket sock;
                 try {
-                    data = Files.readAllBytes(Paths.get(filename));
-                    // Calculate length of data
-                    length = ByteBuffer.allocate(4).putInt(data.length).array();
+                    sock = pool.acquire(address);
                 } catch (IOException e) {
-                    System.err.printf("Cannot read file %s\n", e.getMessage());
+                    System.err.println(e.getMessage());
                     continue;
                 }
-
-                try {
-                    // Send data
-                    sock.send(length);
-                    sock.send(data);
-
-                    // Receive response
-                    byte[] lengthBytes = sock.receive(4);
-                    int resLength = ByteBuffer.wrap(lengthBytes).getInt();
-                    byte[] response = sock.receive(resLength);
-
-                    // Write response to file
-                    String out = getNewFilename(filename);
-                    System.out.println("Writing response to " + out);
-                    try (FileOutputStream stream = new FileOutputStream(out)) {
-                        stream.write(response);
+                if (requests.size() > 1 && sock.isStreamsNegotiated()) {
+                    transformOnStreams(sock, requests);
+                } else {
+                    try {
+                        transform(sock, requests);
+                    } catch (DisconnectException e) {
+                        System.out.println("Connection closed by server since it was idle");
+                    } catch (IOException | InterruptedException e) {
+                        System.err.println(e.getMessage());
+                        sock.close();
                     }
-                } catch (IOException e) {
-                    System.err.println(e.getMessage());
-                } catch (DisconnectException e) {
-                    System.out.println("Connection closed by server since it was idle");
                 }
+                pool.release(sock);
 
             } else {
                 System.out.println("Invalid command");
@@ -88,14 +162,464 @@ public class Client {
         }
     }
 
+    /**
+     * Transform every file under some paths on several connections at once,
+     * without reading commands. Outputs of earlier runs are skipped.
+     * <p>
+     * The files are dealt out between the connections largest first, so
+     * each starts with a similar amount of data. Each connection pipelines
+     * up to BATCH_SIZE of its files at a time, and one that runs out steals
+     * the smallest half of the files left to the busiest.
+     *
+     * @param address     the server's address
+     * @param windowSize  the window size of each connection
+     * @param engine      the engine of each connection
+     * @param connections the number of connections
+     * @param paths       the files and directories to transform
+     * @return true if every file was transformed
+     */
+    private static boolean runBatch(SocketAddress address, int windowSize, ReldatSocket.Engine engine,
+                                    int connections, List<String> paths) {
+        List<Request> requests = new ArrayList<>();
+        try {
+            for (String path : paths) collectFiles(Paths.get(path), requests);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.printf("Cannot list files %s\n", e.getMessage());
+            return false;
+        }
+        requests.sort(Comparator.comparingLong((Request request) -> request.size).reversed());
+
+        ReldatConnectionPool pool = newPool(windowSize, engine, false);
+        WorkQueues<Request> queues = new WorkQueues<>(connections);
+        for (int i = 0; i < requests.size(); ++i) queues.add(i % connections, requests.get(i));
+
+        System.out.printf("Transforming %d files on %d connections\n", requests.size(), connections);
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < connections; ++i) {
+            int worker = i;
+            Thread thread = new Thread(() -> runWorker(address, pool, queues, worker), "connection-" + i);
+            thread.start();
+            workers.add(thread);
+        }
+        try {
+            for (Thread thread : workers) thread.join();
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            pool.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int done = 0;
+        long bytes = 0;
+        for (Request request : requests) {
+            if (!request.done) continue;
+            ++done;
+            bytes += request.size;
+        }
+        System.out.printf("Transformed %d of %d files, %.1f MB in %.2f s: %.2f MB/s, %.0f files/s\n",
+                done, requests.size(), bytes / 1e6, seconds, bytes / 1e6 / seconds, done / seconds);
+        return done == requests.size();
+    }
+
+    /**
+     * Add a request for a file, or for each file under a directory.
+     *
+     * @param path     the file or directory
+     * @param requests where to add the requests
+     * @throws IOException if a directory cannot be listed
+     */
+    private static void collectFiles(Path path, List<Request> requests) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!Files.isRegularFile(file) || isReceived(file)) continue;
+
+                long length = Files.size(file);
+                if (length > Integer.MAX_VALUE) {
+                    System.err.printf("Cannot read file %s: it is too large\n", file);
+                    continue;
+                }
+                requests.add(new Request(file.toString(), length));
+            }
+        }
+    }
+
+    /**
+     * Check if a file is the output of an earlier transform.
+     */
+    private static boolean isReceived(Path file) {
+        String name = file.getFileName().toString();
+        int i = name.lastIndexOf(".");
+        return name.substring(0, i > 0 ? i : name.length()).endsWith(RECEIVED_SUFFIX);
+    }
+
+    /**
+     * Transform the files a batch connection takes from its queue, or
+     * steals, until there are none left.
+     * <p>
+     * A connection that fails is replaced by a new one, and the files of
+     * the requests it was sending are given up on. If it cannot be
+     * replaced the other connections take over the files left to it.
+     *
+     * @param address the server's address
+     * @param pool    the pool to take the connection from
+     * @param queues  the files left to each connection
+     * @param worker  the connection's queue
+     */
+    private static void runWorker(SocketAddress address, ReldatConnectionPool pool,
+                                  WorkQueues<Request> queues, int worker) {
+        ReldatSocket sock = acquire(pool, address);
+        List<Request> batch;
+        while (sock != null && !(batch = queues.take(worker, BATCH_SIZE)).isEmpty()) {
+            try {
+                transform(sock, batch);
+                continue;
+            } catch (DisconnectException e) {
+                System.err.println("Connection timed out");
+            } catch (IOException | InterruptedException e) {
+                System.err.println(e.getMessage());
+            }
+
+            // Responses may still be arriving on it, so start over
+            sock.close();
+            pool.release(sock);
+            sock = acquire(pool, address);
+        }
+        if (sock != null) pool.release(sock);
+    }
+
+    /**
+     * Take a connection from a pool.
+     *
+     * @return the connection, or null if it cannot be established
+     */
+    private static ReldatSocket acquire(ReldatConnectionPool pool, SocketAddress address) {
+        try {
+            return pool.acquire(address);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Create the pool connections are taken from.
+     *
+     * @param windowSize the window size of each connection
+     * @param engine     the engine of each connection
+     * @param streams    whether to offer streams
+     * @return the pool
+     */
+    private static ReldatConnectionPool newPool(int windowSize, ReldatSocket.Engine engine, boolean streams) {
+        return new ReldatConnectionPool(() -> {
+            ReldatSocket sock = new ReldatSocket(0, windowSize, engine);
+            sock.setStreamsEnabled(streams);
+            return sock;
+        });
+    }
+
+    /**
+     * Transform files on the connection's own stream, all requests
+     * outstanding at once.
+     *
+     * @param sock     the connection
+     * @param requests the requests
+     * @throws IOException if a file cannot be read or written or a packet fails to send
+     * @throws DisconnectException if the connection times out
+     * @throws InterruptedException if interrupted while waiting for the responses
+     */
+    private static void transform(ReldatSocket sock, List<Request> requests)
+            throws IOException, DisconnectException, InterruptedException {
+        // The server answers while the requests are still arriving,
+        // so receive the responses on another thread while sending
+        FutureTask<Void> responses = new FutureTask<>(() -> {
+            receiveResponses(sock.getByteChannel(), requests, sock);
+            return null;
+        });
+        new Thread(responses, "receiver").start();
+
+        sendRequests(sock.getByteChannel(), requests, sock);
+        try {
+            responses.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DisconnectException) throw (DisconnectException) e.getCause();
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Transform files in parallel on up to MAX_STREAMS streams, so a large or
+     * unlucky file does not hold up the others. The files are shared out
+     * between the streams, and pipelined on each.
+     *
+     * @param sock     the connection
+     * @param requests the requests
+     */
+    private static void transformOnStreams(ReldatSocket sock, List<Request> requests) {
+        int count = Math.min(MAX_STREAMS, requests.size());
+        List<List<Request>> shares = new ArrayList<>();
+        for (int i = 0; i < count; ++i) shares.add(new ArrayList<>());
+        for (int i = 0; i < requests.size(); ++i) shares.get(i % count).add(requests.get(i));
+
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (List<Request> share : shares) {
+            ReldatStream stream = sock.openStream();
+            FutureTask<Void> sender = new FutureTask<>(() -> {
+                sendRequests(stream, share, null);
+                stream.shutdownOutput();
+                return null;
+            });
+            FutureTask<Void> receiver = new FutureTask<>(() -> {
+                try (ReldatStream s = stream) {
+                    receiveResponses(s, share, null);
+                }
+                return null;
+            });
+            new Thread(sender, "sender-" + stream.getId()).start();
+            new Thread(receiver, "receiver-" + stream.getId()).start();
+            tasks.add(sender);
+            tasks.add(receiver);
+        }
+
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                System.err.println(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Send requests without waiting for their responses.
+     * <p>
+     * Up to PIPELINE_DEPTH files are sent at a time, a chunk of each in
+     * turn, so the small ones are complete, and answered, long before a
+     * large one sent ahead of them.
+     *
+     * @param channel  the connection or stream to send on
+     * @param requests the requests
+     * @param sock     the connection to send large files straight out of
+     *                 the file on, or null if the requests are on a stream
+     * @throws IOException if a file cannot be read or a packet fails to send
+     * @throws DisconnectException if the connection is disconnected
+     */
+    private static void sendRequests(WritableByteChannel channel, List<Request> requests, ReldatSocket sock)
+            throws IOException, DisconnectException {
+        ArrayDeque<Request> waiting = new ArrayDeque<>(requests), active = new ArrayDeque<>();
+        ByteBuffer frame = ByteBuffer.allocate(2 * HEADER_SIZE + BUFFER_SIZE);
+        try {
+            while (!waiting.isEmpty() || !active.isEmpty()) {
+                while (active.size() < PIPELINE_DEPTH && !waiting.isEmpty()) {
+                    Request request = waiting.remove();
+                    request.open(sock == null);
+                    active.add(request);
+                }
+
+                Request request = active.remove();
+                if (sendChunk(channel, request, frame, sock)) {
+                    request.in.close();
+                } else {
+                    active.add(request);
+                }
+            }
+        } finally {
+            for (Request request : active) request.in.close();
+        }
+    }
+
+    /**
+     * Send the next chunk of a request, and the empty frame ending it after
+     * the last one.
+     *
+     * @param channel the connection or stream to send on
+     * @param request the request
+     * @param frame   a buffer for the frame
+     * @param sock    the connection to send large files straight out of the
+     *                file on, or null
+     * @return true if the request is complete
+     * @throws IOException if the file cannot be read or a packet fails to send
+     * @throws DisconnectException if the connection is disconnected
+     */
+    private static boolean sendChunk(WritableByteChannel channel, Request request, ByteBuffer frame,
+                                     ReldatSocket sock) throws IOException, DisconnectException {
+        frame.clear();
+        if (request.size >= MAP_THRESHOLD && sock != null) {
+            // Sent by the connection a mapped region at a time, after its header
+            int length = (int) Math.min(MAP_FRAME_SIZE, request.size - request.in.position());
+            frame.putInt(request.id).putInt(length);
+            channel.write(frame.flip());
+            if (sock.sendFile(request.in, length) < length) throw new EOFException(request.path + " shrank");
+            boolean last = request.in.position() == request.size;
+
+            if (last) channel.write(frame.clear().putInt(request.id).putInt(0).flip());
+            return last;
+        }
+        if (request.mapped != null) {
+            // Sent straight out of the mapping, after its header
+            ByteBuffer chunk = request.mapped.slice();
+            chunk.limit(Math.min(BUFFER_SIZE, chunk.remaining()));
+            request.mapped.position(request.mapped.position() + chunk.limit());
+            boolean last = !request.mapped.hasRemaining();
+
+            frame.putInt(request.id).putInt(chunk.remaining());
+            channel.write(frame.flip());
+            channel.write(chunk);
+            if (last) channel.write(frame.clear().putInt(request.id).putInt(0).flip());
+            return last;
+        }
+
+        // Read straight into the frame, so a small file is a single write
+        frame.position(HEADER_SIZE).limit(HEADER_SIZE + BUFFER_SIZE);
+        while (frame.hasRemaining()) {
+            if (request.in.read(frame) == -1) break;
+        }
+        int length = frame.position() - HEADER_SIZE;
+        boolean last = frame.hasRemaining();
+        frame.putInt(0, request.id).putInt(4, length);
+
+        // An empty chunk is the end already
+        frame.limit(frame.capacity());
+        if (last && length > 0) frame.putInt(request.id).putInt(0);
+        channel.write(frame.flip());
+        return last;
+    }
+
+    /**
+     * Write responses to their files as their frames arrive, in any order,
+     * until each has been ended by an empty frame.
+     *
+     * @param channel  the connection or stream the responses arrive on
+     * @param requests the requests sent on it
+     * @param sock     the connection to receive the frames of large files
+     *                 straight into the file from, or null if the responses
+     *                 are on a stream
+     * @throws IOException if a file cannot be written or the connection closes early
+     * @throws DisconnectException if the connection times out
+     */
+    private static void receiveResponses(ReadableByteChannel channel, List<Request> requests, ReldatSocket sock)
+            throws IOException, DisconnectException {
+        Map<Integer, Request> pending = new HashMap<>();
+        for (Request request : requests) pending.put(request.id, request);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try {
+            while (!pending.isEmpty()) {
+                readFully(channel, header.clear());
+                int id = header.flip().getInt(), length = header.getInt();
+                Request request = pending.get(id);
+                if (request == null) throw new IOException("Unexpected response to request " + id);
+
+                if (request.out == null) {
+                    request.out = FileChannel.open(request.outFile, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                if (length == 0) {
+                    request.out.close();
+                    request.done = true;
+                    pending.remove(id);
+                } else if (request.size >= MAP_THRESHOLD && sock != null) {
+                    // Straight into the file, like it was sent
+                    if (sock.receiveToFile(request.out, length) < length) {
+                        throw new EOFException("Connection closed by server");
+                    }
+                } else {
+                    copy(channel, request.out, length, buffer);
+                }
+            }
+        } finally {
+            for (Request request : pending.values()) {
+                if (request.out != null) request.out.close();
+            }
+        }
+    }
+
+    /**
+     * Read until a buffer is full.
+     *
+     * @throws EOFException if the channel ends first
+     */
+    private static void readFully(ReadableByteChannel in, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (in.read(dst) == -1) throw new EOFException("Connection closed by server");
+        }
+    }
+
+    /**
+     * Copy exactly length bytes from a channel to a file.
+     *
+     * @param in     the channel to read from
+     * @param out    the file to write to
+     * @param length the number of bytes to copy
+     * @param buffer the buffer to copy through
+     * @throws IOException if either fails or in ends early
+     */
+    private static void copy(ReadableByteChannel in, FileChannel out, int length, ByteBuffer buffer)
+            throws IOException {
+        while (length > 0) {
+            buffer.clear().limit(Math.min(buffer.capacity(), length));
+            readFully(in, buffer);
+            length -= buffer.limit();
+            buffer.flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+        }
+    }
+
     private static String getNewFilename(String file) {
-        final String suffix = "-received";
+        final String suffix = RECEIVED_SUFFIX;
 
         int i = file.lastIndexOf(".");
 
-        // Original name does not have extension
-        if (i == -1) return file + suffix;
+        // Original name does not have extension, though a directory might
+        if (i <= file.lastIndexOf(File.separatorChar) + 1) return file + suffix;
 
         return file.substring(0, i) + suffix + file.substring(i);
     }
+
+    /**
+     * A file to transform, with the ID its frames are sent with.
+     */
+    private static final class Request {
+        final int id = nextRequestId++;
+        final Path path;
+        final Path outFile;
+        final long size;
+
+        /**
+         * The file being sent, and its mapping if it is large enough and
+         * sent on a stream.
+         */
+        FileChannel in;
+        MappedByteBuffer mapped;
+
+        /**
+         * The file the response is written to, once it starts arriving.
+         */
+        FileChannel out;
+
+        /**
+         * Whether the whole response has been written.
+         */
+        volatile boolean done;
+
+        Request(String filename, long size) {
+            this.path = Paths.get(filename);
+            this.outFile = Paths.get(getNewFilename(filename));
+            this.size = size;
+        }
+
+        /**
+         * @param map whether to map a large file, rather than leave that
+         *            to the connection
+         */
+        void open(boolean map) throws IOException {
+            in = FileChannel.open(path, StandardOpenOption.READ);
+            if (map && size >= MAP_THRESHOLD) mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
 }
@@ -0,0 +1,91 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Work shared out between a fixed set of workers, each with its own deque.
+ * <p>
+ * A worker takes from the head of its own deque. Once that is empty it
+ * steals the back half of the longest other deque, so a worker that
+ * finishes early takes over from the one with the most left rather than
+ * idling, and workers only contend for a deque when stealing.
+ *
+ * @param <T> the type of the work items
+ */
+final class WorkQueues<T> {
+    private final List<ArrayDeque<T>> queues = new ArrayList<>();
+
+    /**
+     * @param workers the number of workers
+     */
+    WorkQueues(int workers) {
+        for (int i = 0; i < workers; ++i) queues.add(new ArrayDeque<>());
+    }
+
+    /**
+     * Add an item to the back of a worker's deque.
+     *
+     * @param worker the worker
+     * @param item   the item
+     */
+    void add(int worker, T item) {
+        ArrayDeque<T> queue = queues.get(worker);
+        synchronized (queue) {
+            queue.add(item);
+        }
+    }
+
+    /**
+     * Take up to max items from the front of a worker's deque, stealing
+     * from another worker if it is empty.
+     *
+     * @param worker the worker
+     * @param max    the most items to take
+     * @return the items, none once every deque is empty
+     */
+    List<T> take(int worker, int max) {
+        ArrayDeque<T> own = queues.get(worker);
+        List<T> taken = new ArrayList<>();
+        while (true) {
+            synchronized (own) {
+                while (taken.size() < max && !own.isEmpty()) taken.add(own.remove());
+            }
+            if (!taken.isEmpty() || !steal(own)) return taken;
+        }
+    }
+
+    /**
+     * Move the back half of the longest other deque to the front of a
+     * worker's own, in the same order.
+     *
+     * @return false if there was nothing left to steal
+     */
+    private boolean steal(ArrayDeque<T> own) {
+        while (true) {
+            ArrayDeque<T> victim = null;
+            int longest = 0;
+            for (ArrayDeque<T> queue : queues) {
+                if (queue == own) continue;
+                synchronized (queue) {
+                    if (queue.size() > longest) {
+                        victim = queue;
+                        longest = queue.size();
+                    }
+                }
+            }
+            if (victim == null) return false;
+
+            List<T> stolen = new ArrayList<>();
+            synchronized (victim) {
+                for (int n = (victim.size() + 1) / 2; n > 0; --n) stolen.add(victim.removeLast());
+            }
+            // The victim may have emptied since, so look again
+            if (stolen.isEmpty()) continue;
+
+            synchronized (own) {
+                for (T item : stolen) own.addFirst(item);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkQueuesTest {
+    @Test
+    void testOwnQueueFirst() {
+        WorkQueues<Integer> queues = new WorkQueues<>(2);
+        for (int i = 0; i < 5; ++i) queues.add(0, i);
+        queues.add(1, 100);
+
+        assertEquals(Arrays.asList(0, 1, 2), queues.take(0, 3));
+        assertEquals(Collections.singletonList(100), queues.take(1, 3));
+        assertEquals(Arrays.asList(3, 4), queues.take(0, 3));
+    }
+
+    @Test
+    void testStealHalfInOrder() {
+        WorkQueues<Integer> queues = new WorkQueues<>(3);
+        for (int i = 0; i < 7; ++i) queues.add(0, i);
+        for (int i = 0; i < 2; ++i) queues.add(1, 100 + i);
+
+        // Worker 2 steals the back half of the longest deque, rounded up,
+        // and takes it in the order it was added
+        assertEquals(Arrays.asList(3, 4), queues.take(2, 2));
+        assertEquals(Arrays.asList(5, 6), queues.take(2, 10));
+
+        // The victim keeps the front half
+        assertEquals(Arrays.asList(0, 1, 2), queues.take(0, 10));
+
+        // Then the next longest is stolen from, down to a single item
+        assertEquals(Collections.singletonList(101), queues.take(0, 10));
+        assertEquals(Collections.singletonList(100), queues.take(2, 10));
+        assertTrue(queues.take(0, 10).isEmpty());
+        assertTrue(queues.take(1, 10).isEmpty());
+        assertTrue(queues.take(2, 10).isEmpty());
+    }
+
+    @Test
+    void testDrainWithWorkers() throws InterruptedException {
+        int workers = 4, items = 10000;
+        Random r = new Random(42);
+        for (int round = 0; round < 20; ++round) {
+            WorkQueues<Integer> queues = new WorkQueues<>(workers);
+            // Unevenly, so most of the work is stolen
+            for (int i = 0; i < items; ++i) queues.add(r.nextInt(10) == 0 ? r.nextInt(workers) : 0, i);
+
+            List<List<Integer>> taken = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(workers);
+            for (int w = 0; w < workers; ++w) {
+                List<Integer> mine = new ArrayList<>();
+                taken.add(mine);
+                int worker = w, max = 1 + r.nextInt(8);
+                Thread thread = new Thread(() -> {
+                    // Every worker stops once all the deques are empty
+                    for (List<Integer> batch; !(batch = queues.take(worker, max)).isEmpty(); ) {
+                        assertTrue(batch.size() <= max);
+                        mine.addAll(batch);
+                    }
+                    done.countDown();
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS), "workers did not finish");
+
+            // Every item was taken exactly once
+            boolean[] seen = new boolean[items];
+            int count = 0;
+            for (List<Integer> mine : taken) {
+                for (int item : mine) {
+                    assertFalse(seen[item], "taken twice: " + item);
+                    seen[item] = true;
+                    count++;
+                }
+            }
+            assertEquals(items, count);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Transport on top of a non-blocking DatagramChannel.
+ * <p>
+ * Timeouts are handled by waiting on a Selector instead of setting a
+ * timeout on the socket before every receive, and datagrams are read
+ * straight into direct buffers.
+ */
+final class ChannelTransport implements DatagramTransport {
+    private final DatagramChannel channel;
+
+    /**
+     * Selector used to wait for datagrams, opened on the first blocking
+     * receive. Channels driven by an event loop never need one.
+     */
+    private Selector selector;
+
+    /**
+     * Open a channel bound on a specific port.
+     *
+     * @param port              the port to bind on, or 0 for a random port
+     * @param receiveBufferSize the size of the socket receive buffer in bytes
+     * @throws IOException when the channel fails to open
+     */
+    ChannelTransport(int port, int receiveBufferSize) throws IOException {
+        channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the underlying channel, e.g. to register it with another Selector.
+     *
+     * @return the channel
+     */
+    DatagramChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public boolean setDontFragment() {
+        if (IP_DONTFRAGMENT == null) return false;
+        try {
+            channel.setOption(IP_DONTFRAGMENT, true);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer datagram, SocketAddress address) throws IOException {
+        // Only returns 0 if the socket send buffer is full, which drops
+        // the datagram like the network would
+        channel.send(datagram, address);
+    }
+
+    @Override
+    public SocketAddress receive(ByteBuffer dst, int timeout) throws IOException {
+        long deadline = System.nanoTime() + timeout * 1000000L;
+
+        while (true) {
+            SocketAddress from = channel.receive(dst);
+            if (from != null || timeout < 0) return from;
+
+            long remaining = timeout == 0 ? 0 : (deadline - System.nanoTime()) / 1000000;
+            if (timeout != 0 && remaining <= 0) return null;
+
+            if (selector == null) {
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+            }
+            selector.select(remaining);
+            selector.selectedKeys().clear();
+        }
+    }
+
+    @Override
+    public boolean prefersDirectBuffers() {
+        return true;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        try {
+            return channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (selector != null) selector.close();
+        } finally {
+            channel.close();
+        }
+    }
+}
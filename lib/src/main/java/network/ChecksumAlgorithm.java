@@ -0,0 +1,130 @@
+package network;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Checksum algorithms a packet can be protected with.
+ * <p>
+ * The algorithm is identified on the wire by its id, and negotiated
+ * during the handshake. Each thread gets its own instance of the underlying
+ * digest so checksums can be calculated without any allocation.
+ */
+public enum ChecksumAlgorithm {
+    /** MD5 digest, the largest and slowest of the three */
+    MD5(1, 16) {
+        private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform is required to support MD5
+                throw new IllegalStateException(e);
+            }
+        });
+
+        @Override
+        void calculate(ByteBuffer header, ByteBuffer payload, byte[] dst) {
+            MessageDigest md = digests.get();
+            md.update(header);
+            if (payload != null) md.update(payload);
+            try {
+                md.digest(dst, 0, getLength());
+            } catch (DigestException e) {
+                // dst is always at least getLength() long
+                throw new IllegalArgumentException(e);
+            }
+        }
+    },
+
+    /** CRC-32 */
+    CRC32(2, 4) {
+        private final ThreadLocal<Checksum> crcs = ThreadLocal.withInitial(CRC32::new);
+
+        @Override
+        void calculate(ByteBuffer header, ByteBuffer payload, byte[] dst) {
+            calculateCrc(crcs.get(), header, payload, dst);
+        }
+    },
+
+    /** CRC-32C, hardware accelerated on most platforms */
+    CRC32C(3, 4) {
+        private final ThreadLocal<Checksum> crcs = ThreadLocal.withInitial(CRC32C::new);
+
+        @Override
+        void calculate(ByteBuffer header, ByteBuffer payload, byte[] dst) {
+            calculateCrc(crcs.get(), header, payload, dst);
+        }
+    };
+
+    /** The algorithm used when none has been negotiated */
+    public static final ChecksumAlgorithm DEFAULT = CRC32C;
+
+    private static final ChecksumAlgorithm[] ALGORITHMS = values();
+
+    private final byte id;
+    private final int length;
+
+    ChecksumAlgorithm(int id, int length) {
+        this.id = (byte) id;
+        this.length = length;
+    }
+
+    /**
+     * Get the identifier of the algorithm used in packet headers.
+     *
+     * @return the id
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * Get the length of the checksum.
+     *
+     * @return the length in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Calculate the checksum of a packet.
+     * <p>
+     * The positions of the buffers are advanced to their limits.
+     *
+     * @param header  the serialized header fields covered by the checksum
+     * @param payload the payload or null for header-only packets
+     * @param dst     the array the checksum is written to
+     */
+    abstract void calculate(ByteBuffer header, ByteBuffer payload, byte[] dst);
+
+    private static void calculateCrc(Checksum crc, ByteBuffer header, ByteBuffer payload, byte[] dst) {
+        crc.reset();
+        crc.update(header);
+        if (payload != null) crc.update(payload);
+
+        int value = (int) crc.getValue();
+        dst[0] = (byte) (value >>> 24);
+        dst[1] = (byte) (value >>> 16);
+        dst[2] = (byte) (value >>> 8);
+        dst[3] = (byte) value;
+    }
+
+    /**
+     * Look up an algorithm by its identifier.
+     *
+     * @param id the id from a packet header
+     * @return the algorithm or null if it is not supported
+     */
+    public static ChecksumAlgorithm fromId(byte id) {
+        for (ChecksumAlgorithm algorithm : ALGORITHMS) {
+            if (algorithm.id == id) return algorithm;
+        }
+        return null;
+    }
+}
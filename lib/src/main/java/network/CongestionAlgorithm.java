@@ -0,0 +1,61 @@
+package network;
+
+/**
+ * Congestion control algorithms a socket can limit its send window with.
+ * <p>
+ * Each connection gets its own controller. Reno and CUBIC start with a
+ * window of 10 packets and share a link fairly with other connections
+ * using them; NONE leaves the window unlimited.
+ */
+public enum CongestionAlgorithm {
+    /** Additive increase, multiplicative decrease as in TCP Reno */
+    RENO {
+        @Override
+        CongestionController newController() {
+            return new RenoController();
+        }
+    },
+
+    /** CUBIC, the default */
+    CUBIC {
+        @Override
+        CongestionController newController() {
+            return new CubicController();
+        }
+    },
+
+    /** No congestion control: only the receive window limits sending */
+    NONE {
+        @Override
+        CongestionController newController() {
+            return new CongestionController() {
+                @Override
+                public int getWindow() {
+                    return Integer.MAX_VALUE;
+                }
+
+                @Override
+                public void onAck(int packets, long now, long srtt) {
+                }
+
+                @Override
+                public void onCongestion(long now) {
+                }
+
+                @Override
+                public void onTimeout(long now) {
+                }
+            };
+        }
+    };
+
+    /** The algorithm sockets use unless set otherwise */
+    public static final CongestionAlgorithm DEFAULT = CUBIC;
+
+    /**
+     * Create the state of the algorithm for a new connection.
+     *
+     * @return the controller
+     */
+    abstract CongestionController newController();
+}
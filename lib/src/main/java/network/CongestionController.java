@@ -0,0 +1,45 @@
+package network;
+
+/**
+ * Congestion control for the send window of one connection.
+ * <p>
+ * The controller keeps a congestion window, the number of packets that
+ * may be in flight, which the socket applies on top of the receive window
+ * advertised by the remote socket.
+ */
+interface CongestionController {
+    /**
+     * Get the congestion window.
+     *
+     * @return the window size in packets, at least 1
+     */
+    int getWindow();
+
+    /**
+     * Grow the window for newly acknowledged packets.
+     * <p>
+     * This is only called while the window limits sending, so an idle or
+     * application limited connection does not inflate it.
+     *
+     * @param packets the number of packets acknowledged
+     * @param now     the current time in nanoseconds
+     * @param srtt    the smoothed round trip time in nanoseconds, 0 if unknown
+     */
+    void onAck(int packets, long now, long srtt);
+
+    /**
+     * Shrink the window after a loss. This is called once per loss event,
+     * however many packets were lost.
+     *
+     * @param now the current time in nanoseconds
+     */
+    void onCongestion(long now);
+
+    /**
+     * Collapse the window after a retransmission timeout. A timeout that
+     * starts a loss event is reported to {@link #onCongestion(long)} first.
+     *
+     * @param now the current time in nanoseconds
+     */
+    void onTimeout(long now);
+}
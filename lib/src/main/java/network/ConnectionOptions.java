@@ -0,0 +1,120 @@
+package network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options negotiated during the handshake.
+ * <p>
+ * The options are carried as the payload of the SYN and SYNACK packets.
+ * Each option is encoded as a type byte, a length byte and the value, so
+ * options that a peer does not understand can be skipped. A SYN without
+ * a payload negotiates the defaults.
+ */
+final class ConnectionOptions {
+    /** Option types */
+    private static final byte CHECKSUMS = 1, SACK = 2, TIMESTAMPS = 3, MSS = 4, STREAMS = 5;
+
+    /**
+     * The checksum algorithms supported by the sender, most preferred first.
+     * In a SYNACK this is the single algorithm chosen for the connection.
+     */
+    List<ChecksumAlgorithm> checksums = new ArrayList<>();
+
+    /**
+     * Whether the sender understands SACK blocks. In a SYNACK this means
+     * both sides send them.
+     */
+    boolean sack;
+
+    /**
+     * Whether the sender understands timestamps. In a SYNACK this means
+     * both sides send them.
+     */
+    boolean timestamps;
+
+    /**
+     * The largest datagram the sender can receive in bytes, or 0 if it did
+     * not say.
+     */
+    int mss;
+
+    /**
+     * Whether the sender can carry several streams on the connection. In a
+     * SYNACK this means both sides can.
+     */
+    boolean streams;
+
+    /**
+     * Serialize the options into the payload of a handshake packet.
+     *
+     * @return the serialized options
+     */
+    byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + checksums.size() + (sack ? 2 : 0) + (timestamps ? 2 : 0)
+                + (mss > 0 ? 4 : 0) + (streams ? 2 : 0));
+
+        buffer.put(CHECKSUMS).put((byte) checksums.size());
+        for (ChecksumAlgorithm algorithm : checksums) buffer.put(algorithm.getId());
+        if (sack) buffer.put(SACK).put((byte) 0);
+        if (timestamps) buffer.put(TIMESTAMPS).put((byte) 0);
+        if (mss > 0) buffer.put(MSS).put((byte) 2).putShort((short) mss);
+        if (streams) buffer.put(STREAMS).put((byte) 0);
+
+        return buffer.array();
+    }
+
+    /**
+     * Deserialize the options from a handshake packet.
+     * <p>
+     * Unknown options and algorithms are ignored.
+     *
+     * @param packet the SYN or SYNACK packet
+     * @return the options
+     */
+    static ConnectionOptions fromPacket(ReldatPacket packet) {
+        ConnectionOptions options = new ConnectionOptions();
+        if (packet.getSize() == 0) return options;
+
+        ByteBuffer buffer = ByteBuffer.wrap(packet.getData());
+        while (buffer.remaining() >= 2) {
+            byte type = buffer.get();
+            int length = buffer.get() & 0xFF;
+            if (length > buffer.remaining()) break;
+
+            int end = buffer.position() + length;
+            if (type == CHECKSUMS) {
+                while (buffer.position() < end) {
+                    ChecksumAlgorithm algorithm = ChecksumAlgorithm.fromId(buffer.get());
+                    if (algorithm != null) options.checksums.add(algorithm);
+                }
+            } else if (type == SACK) {
+                options.sack = true;
+            } else if (type == TIMESTAMPS) {
+                options.timestamps = true;
+            } else if (type == MSS && length == 2) {
+                options.mss = buffer.getShort() & 0xFFFF;
+            } else if (type == STREAMS) {
+                options.streams = true;
+            }
+            buffer.position(end);
+        }
+
+        return options;
+    }
+
+    /**
+     * Pick the checksum algorithm for the connection.
+     *
+     * @param offered   the algorithms offered by the peer, most preferred first
+     * @param supported the algorithms supported locally
+     * @return the first offered algorithm that is supported, or the default
+     */
+    static ChecksumAlgorithm negotiate(List<ChecksumAlgorithm> offered, List<ChecksumAlgorithm> supported) {
+        for (ChecksumAlgorithm algorithm : offered) {
+            if (supported.contains(algorithm)) return algorithm;
+        }
+        return ChecksumAlgorithm.DEFAULT;
+    }
+}
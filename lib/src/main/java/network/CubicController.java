@@ -0,0 +1,94 @@
+package network;
+
+/**
+ * CUBIC congestion control (RFC 8312).
+ * <p>
+ * After a loss the window grows along a cubic function of the time since
+ * the loss, centred on the window where it happened: quickly at first,
+ * flattening out near that window and then probing beyond it. Growth
+ * depends on time rather than the round trip time, so flows with
+ * different RTTs share a bottleneck more evenly than with Reno, and the
+ * window is never smaller than Reno's would be.
+ */
+final class CubicController implements CongestionController {
+    private static final double C = 0.4, BETA = 0.7;
+
+    private double cwnd = RenoController.INITIAL_WINDOW;
+    private double ssthresh = Double.MAX_VALUE;
+
+    /**
+     * The window at the last loss and the one before it, for fast
+     * convergence.
+     */
+    private double wMax, wLastMax;
+
+    /**
+     * The start of the current growth epoch in nanoseconds, 0 before the
+     * first ACK after a loss, and the epoch's parameters: the time to reach
+     * wMax in seconds, the window the cubic function is centred on and the
+     * window Reno would have reached.
+     */
+    private long epochStart;
+    private double k, origin, wEst;
+
+    @Override
+    public int getWindow() {
+        return (int) cwnd;
+    }
+
+    @Override
+    public void onAck(int packets, long now, long srtt) {
+        if (cwnd < ssthresh) {
+            cwnd += packets;
+            return;
+        }
+
+        if (epochStart == 0) {
+            epochStart = now;
+            if (cwnd < wMax) {
+                k = Math.cbrt((wMax - cwnd) / C);
+                origin = wMax;
+            } else {
+                k = 0;
+                origin = cwnd;
+            }
+            wEst = cwnd;
+        }
+
+        double t = (now - epochStart + srtt) / 1e9;
+        double target = origin + C * Math.pow(t - k, 3);
+
+        // Grow towards the cubic function by the next round trip
+        if (target > cwnd) {
+            cwnd += (target - cwnd) / cwnd * packets;
+        } else {
+            cwnd += 0.01 * packets / cwnd;
+        }
+
+        // Never grow slower than Reno would
+        wEst += 3 * (1 - BETA) / (1 + BETA) * packets / cwnd;
+        if (wEst > cwnd) cwnd = wEst;
+    }
+
+    @Override
+    public void onCongestion(long now) {
+        // Release bandwidth faster to new flows when the window keeps shrinking
+        if (cwnd < wLastMax) {
+            wLastMax = cwnd;
+            wMax = cwnd * (1 + BETA) / 2;
+        } else {
+            wLastMax = cwnd;
+            wMax = cwnd;
+        }
+
+        cwnd = Math.max(cwnd * BETA, 2);
+        ssthresh = cwnd;
+        epochStart = 0;
+    }
+
+    @Override
+    public void onTimeout(long now) {
+        cwnd = 1;
+        epochStart = 0;
+    }
+}
@@ -0,0 +1,64 @@
+package network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+
+/**
+ * The engine a ReldatSocket sends and receives UDP datagrams through.
+ */
+interface DatagramTransport extends Closeable {
+    /**
+     * The socket option that stops datagrams from being fragmented, or null
+     * if the platform does not have one. It is only available from Java 19.
+     */
+    SocketOption<Boolean> IP_DONTFRAGMENT = findDontFragmentOption();
+    /**
+     * Send the datagram between the buffer's position and limit.
+     *
+     * @param datagram the datagram to send
+     * @param address  the SocketAddress to send it to
+     * @throws IOException when the datagram fails to send
+     */
+    void send(ByteBuffer datagram, SocketAddress address) throws IOException;
+
+    /**
+     * Receive a datagram into a buffer, starting at its position.
+     * <p>
+     * On return the position is advanced past the received datagram.
+     *
+     * @param dst     the buffer to receive into
+     * @param timeout the timeout in milliseconds. A timeout of 0 is an infinite timeout,
+     *                and a negative timeout only returns a datagram already received
+     * @return the SocketAddress the datagram was sent from, or null on timeout
+     * @throws IOException when receiving fails
+     */
+    SocketAddress receive(ByteBuffer dst, int timeout) throws IOException;
+
+    /**
+     * @return whether direct buffers should be used with this transport
+     */
+    boolean prefersDirectBuffers();
+
+    SocketAddress getLocalSocketAddress();
+
+    /**
+     * Stop datagrams that are too big for the path from being fragmented,
+     * so they are dropped instead.
+     *
+     * @return false if the platform does not support it
+     */
+    boolean setDontFragment();
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findDontFragmentOption() {
+        try {
+            return (SocketOption<Boolean>) Class.forName("jdk.net.ExtendedSocketOptions")
+                    .getField("IP_DONTFRAGMENT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
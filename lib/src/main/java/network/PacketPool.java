@@ -0,0 +1,59 @@
+package network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of reusable packets with their own receive buffers.
+ * <p>
+ * Datagrams are received straight into a pooled packet's buffer and
+ * decoded in place, so once the pool is warm receiving does not allocate.
+ * Packets must be released once their data has been consumed. The pool is
+ * not thread-safe and belongs to a single socket.
+ */
+final class PacketPool {
+    private final ArrayDeque<ReldatPacket> free;
+    private final int capacity;
+    private final int bufferSize;
+    private final boolean direct;
+
+    /**
+     * @param capacity   the maximum number of idle packets kept in the pool
+     * @param bufferSize the size of each receive buffer in bytes
+     * @param direct     whether to allocate direct receive buffers
+     */
+    PacketPool(int capacity, int bufferSize, boolean direct) {
+        this.free = new ArrayDeque<>(capacity);
+        this.capacity = capacity;
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    /**
+     * Take a packet from the pool, creating a new one if it is empty.
+     *
+     * @return a packet with a cleared receive buffer
+     */
+    ReldatPacket acquire() {
+        ReldatPacket packet = free.poll();
+        if (packet == null) {
+            ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            packet = new ReldatPacket(buffer);
+        }
+        packet.getBuffer().clear();
+        return packet;
+    }
+
+    /**
+     * Return a packet to the pool.
+     * <p>
+     * Packets that were not acquired from a pool are ignored, as are packets
+     * beyond the capacity of the pool, which are left to the GC.
+     *
+     * @param packet the packet to release, may be null
+     */
+    void release(ReldatPacket packet) {
+        if (packet == null || packet.getBuffer() == null) return;
+        if (free.size() < capacity) free.push(packet);
+    }
+}
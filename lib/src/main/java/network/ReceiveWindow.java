@@ -0,0 +1,205 @@
+package network;
+
+import java.util.Collection;
+
+/**
+ * The packets received out of order, waiting for the gap before them to
+ * be filled.
+ * <p>
+ * Packets are kept in a ring indexed by sequence number: a packet's slot
+ * is its sequence number divided by the stride, the space a full packet
+ * takes up, modulo the capacity. A run of full packets lands in
+ * consecutive slots, so adding, finding and removing a packet takes
+ * constant time however large the window is. Shorter packets can land in
+ * a slot that is taken, and are then put in the next free one. The ring
+ * has room for twice the window, so it is never more than half full.
+ * <p>
+ * A slot only needs the packet's sequence numbers: packets of a stream
+ * are handed to the stream as soon as they arrive, and just their place
+ * in the connection is kept here until the gap is filled.
+ * <p>
+ * Like {@link PacketPool} it is not thread-safe.
+ */
+final class ReceiveWindow {
+    private final boolean[] taken;
+    private final int[] seqNums, ends;
+    private final ReldatPacket[] packets;
+    private final int mask;
+
+    /**
+     * The sequence numbers a full packet takes up.
+     */
+    private int stride = 1;
+    private int size, held;
+
+    /**
+     * @param windowSize the maximum number of packets in the window
+     */
+    ReceiveWindow(int windowSize) {
+        int capacity = Integer.highestOneBit(Math.max(1, windowSize * 2 - 1)) << 1;
+        this.taken = new boolean[capacity];
+        this.seqNums = new int[capacity];
+        this.ends = new int[capacity];
+        this.packets = new ReldatPacket[capacity];
+        this.mask = capacity - 1;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of packets kept, not counting those whose data
+     * went elsewhere
+     */
+    int held() {
+        return held;
+    }
+
+    /**
+     * Grow the stride to fit a packet received in order. The stride only
+     * changes while the window is empty, since the slots depend on it.
+     *
+     * @param packet the packet
+     */
+    void fit(ReldatPacket packet) {
+        if (size == 0) stride = Math.max(stride, packet.getSize() + 1);
+    }
+
+    /**
+     * Add a packet unless one with the same sequence number is already in
+     * the window.
+     *
+     * @param packet the packet
+     * @return false if the packet is a duplicate
+     */
+    boolean add(ReldatPacket packet) {
+        return add(packet.getSeqNum(), ReldatSocket.calcAck(packet), packet);
+    }
+
+    /**
+     * Add the sequence numbers of a packet, unless one with the same
+     * sequence number is already in the window.
+     *
+     * @param seqNum the packet's sequence number
+     * @param end    the ACK number acknowledging it
+     * @param packet the packet to keep, or null if its data went elsewhere
+     * @return false if the packet is a duplicate
+     */
+    boolean add(int seqNum, int end, ReldatPacket packet) {
+        int i = home(seqNum);
+        for (; taken[i]; i = (i + 1) & mask) {
+            if (seqNums[i] == seqNum) return false;
+        }
+        taken[i] = true;
+        seqNums[i] = seqNum;
+        ends[i] = end;
+        packets[i] = packet;
+        ++size;
+        if (packet != null) ++held;
+        return true;
+    }
+
+    /**
+     * Remove the packet with a sequence number, if it is in the window.
+     *
+     * @param seqNum the sequence number
+     * @param into   where to put the packet, if the window kept it
+     * @return the ACK number acknowledging the packet, or -1 if it is not
+     * in the window
+     */
+    int remove(int seqNum, Collection<ReldatPacket> into) {
+        if (size == 0) return -1;
+
+        int i = home(seqNum);
+        for (; taken[i]; i = (i + 1) & mask) {
+            if (seqNums[i] != seqNum) continue;
+
+            int end = ends[i];
+            if (packets[i] != null) {
+                into.add(packets[i]);
+                --held;
+            }
+            delete(i);
+            --size;
+            return end;
+        }
+        return -1;
+    }
+
+    /**
+     * Report the runs of consecutive packets in the window, lowest first,
+     * as those are the gaps the remote socket resends first.
+     * <p>
+     * The slots are visited in order from where the next expected packet
+     * would go, so this stops as soon as the ACK is full. A packet that
+     * had to move to a later slot can split a run into two blocks.
+     *
+     * @param ack            the ACK to add the blocks to
+     * @param expectedSeqNum the sequence number of the first missing packet
+     */
+    void addSackBlocks(ReldatPacket ack, int expectedSeqNum) {
+        int start = 0, end = 0, seen = 0;
+        boolean inBlock = false;
+        for (int i = home(expectedSeqNum), n = 0; n <= mask && seen < size; i = (i + 1) & mask, ++n) {
+            if (!taken[i]) continue;
+            ++seen;
+
+            if (inBlock && seqNums[i] == end) {
+                end = ends[i];
+                continue;
+            }
+            if (inBlock) {
+                ack.addSackBlock(start, end);
+                if (ack.getSackBlockCount() == ReldatPacket.MAX_SACK_BLOCKS) return;
+            }
+            start = seqNums[i];
+            end = ends[i];
+            inBlock = true;
+        }
+        if (inBlock) ack.addSackBlock(start, end);
+    }
+
+    /**
+     * Remove all packets, returning the ones kept to a pool.
+     *
+     * @param pool the pool
+     */
+    void releaseAll(PacketPool pool) {
+        for (int i = 0; i <= mask; ++i) {
+            if (packets[i] != null) pool.release(packets[i]);
+            packets[i] = null;
+            taken[i] = false;
+        }
+        size = 0;
+        held = 0;
+    }
+
+    private int home(int seqNum) {
+        return (seqNum / stride) & mask;
+    }
+
+    /**
+     * Empty a slot, moving later packets of the same run of taken slots
+     * back into it where that brings them closer to their own slot, so
+     * that every packet stays reachable from its slot.
+     */
+    private void delete(int i) {
+        for (int j = (i + 1) & mask; taken[j]; j = (j + 1) & mask) {
+            int home = home(seqNums[j]);
+            boolean reachable = i <= j ? i < home && home <= j : i < home || home <= j;
+            if (reachable) continue;
+
+            seqNums[i] = seqNums[j];
+            ends[i] = ends[j];
+            packets[i] = packets[j];
+            i = j;
+        }
+        taken[i] = false;
+        packets[i] = null;
+    }
+}
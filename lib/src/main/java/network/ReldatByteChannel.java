@@ -0,0 +1,46 @@
+package network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * A blocking channel reading and writing on a connection.
+ */
+final class ReldatByteChannel implements ByteChannel {
+    private final ReldatSocket socket;
+
+    ReldatByteChannel(ReldatSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        try {
+            return socket.readBlocking(dst);
+        } catch (DisconnectException e) {
+            throw new IOException("Connection timed out");
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (socket.isClosed()) throw new ClosedChannelException();
+        try {
+            return socket.writeFully(src);
+        } catch (DisconnectException e) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,331 @@
+package network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps connections open once they are done with, so later requests to the
+ * same address skip the handshake.
+ * <p>
+ * Connections are taken with {@link #acquire(SocketAddress)} and given back
+ * with {@link #release(ReldatSocket)} once nothing more is expected on them.
+ * The connection released last is handed out first, so when fewer are
+ * needed the others go idle, and are closed once they have been idle for
+ * the idle timeout. Until then a background thread answers and sends their
+ * keepalives, see {@link ReldatSocket#setKeepAlive(int, int)}, so they stay
+ * open however long that is, and closes those whose remote socket is gone.
+ * A connection idle for longer than the validation interval is checked
+ * with {@link ReldatSocket#ping(int)} before it is handed out, and replaced
+ * if the remote socket does not answer.
+ * <p>
+ * The pool is thread-safe.
+ */
+public final class ReldatConnectionPool implements Closeable {
+    /**
+     * How often idle connections are looked for and kept alive in ms. This
+     * is shorter than the default keepalive interval, so they answer the
+     * remote socket's keepalives in time.
+     */
+    private static final int EVICT_INTERVAL = 1000;
+
+    /**
+     * Creates the sockets connections are made with.
+     */
+    @FunctionalInterface
+    public interface SocketFactory {
+        ReldatSocket newSocket() throws IOException;
+    }
+
+    private final SocketFactory factory;
+
+    /**
+     * The idle connections to each address, released last first, and the
+     * address each connection handed out was acquired for.
+     */
+    private final Map<SocketAddress, ArrayDeque<Idle>> idle = new HashMap<>();
+    private final Map<ReldatSocket, SocketAddress> leased = new HashMap<>();
+
+    private int maxIdle = 8;
+    private int idleTimeout = 60000;
+    private int validationInterval = 1000;
+    private int validationTimeout = 1000;
+
+    private final ScheduledExecutorService evictor;
+    private boolean closed;
+
+    /**
+     * Construct a pool of connections on sockets bound on random ports.
+     *
+     * @param windowSize the receiving window size of each connection
+     */
+    public ReldatConnectionPool(int windowSize) {
+        this(() -> new ReldatSocket(windowSize));
+    }
+
+    /**
+     * Construct a pool of connections on sockets created by a factory, e.g.
+     * to set their engine or options.
+     *
+     * @param factory creates an unconnected socket for each connection
+     */
+    public ReldatConnectionPool(SocketFactory factory) {
+        this.factory = factory;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "reldat-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, EVICT_INTERVAL, EVICT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the most idle connections kept to each address. Connections
+     * released beyond that are closed.
+     *
+     * @param maxIdle the number of connections
+     */
+    public synchronized void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Set how long a connection is kept idle before it is closed.
+     *
+     * @param idleTimeout the time in milliseconds
+     */
+    public synchronized void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Set how long a connection can be idle and still be handed out without
+     * checking it first, and how long the check waits for an answer.
+     *
+     * @param interval the idle time in milliseconds, 0 to always check
+     * @param timeout  the time to wait in milliseconds
+     */
+    public synchronized void setValidation(int interval, int timeout) {
+        this.validationInterval = interval;
+        this.validationTimeout = timeout;
+    }
+
+    /**
+     * Get a connection to an address, reusing an idle one if there is one
+     * that still works. Otherwise a new connection is established, which
+     * blocks until it is.
+     *
+     * @param address the address to connect to
+     * @return the connection
+     * @throws IOException if the socket cannot be created or the connection fails
+     * @throws IllegalStateException if the pool is closed
+     */
+    public ReldatSocket acquire(SocketAddress address) throws IOException {
+        ReldatSocket conn = takeIdle(address);
+        if (conn == null) {
+            conn = factory.newSocket();
+            try {
+                conn.connect(address);
+            } catch (ConnectException e) {
+                conn.close();
+                throw e;
+            }
+        }
+
+        synchronized (this) {
+            if (closed) {
+                conn.close();
+                throw new IllegalStateException("Connection pool closed");
+            }
+            leased.put(conn, address);
+        }
+        return conn;
+    }
+
+    /**
+     * Open connections to an address ahead of time, until that many are
+     * idle.
+     *
+     * @param address the address to connect to
+     * @param count   the number of idle connections wanted
+     * @throws IOException if a socket cannot be created or a connection fails
+     */
+    public void warm(SocketAddress address, int count) throws IOException {
+        List<ReldatSocket> opened = new ArrayList<>();
+        try {
+            for (int i = getIdleCount(address); i < count; ++i) {
+                ReldatSocket conn = factory.newSocket();
+                opened.add(conn);
+                conn.connect(address);
+            }
+        } catch (IOException e) {
+            for (ReldatSocket conn : opened) conn.close();
+            throw e;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                for (ReldatSocket conn : opened) conn.close();
+                throw new IllegalStateException("Connection pool closed");
+            }
+            ArrayDeque<Idle> deque = idle.computeIfAbsent(address, k -> new ArrayDeque<>());
+            for (ReldatSocket conn : opened) deque.addLast(new Idle(conn));
+        }
+    }
+
+    /**
+     * Give back a connection acquired from the pool, once the exchange on
+     * it is over: everything received on it has been read.
+     * <p>
+     * A connection that is closed, has data left to read or is beyond the
+     * pool's limit is closed instead of being kept.
+     *
+     * @param conn the connection
+     * @throws IllegalArgumentException if the connection was not acquired from the pool
+     */
+    public void release(ReldatSocket conn) {
+        boolean clean = conn.isConnected() && conn.available() == 0;
+        synchronized (this) {
+            SocketAddress address = leased.remove(conn);
+            if (address == null) throw new IllegalArgumentException("Connection not acquired from this pool");
+
+            ArrayDeque<Idle> deque = idle.computeIfAbsent(address, k -> new ArrayDeque<>());
+            if (clean && !closed && deque.size() < maxIdle) {
+                deque.addFirst(new Idle(conn));
+                return;
+            }
+        }
+        conn.close();
+    }
+
+    /**
+     * Get the number of idle connections to an address.
+     *
+     * @param address the address
+     * @return the number of connections
+     */
+    public synchronized int getIdleCount(SocketAddress address) {
+        ArrayDeque<Idle> deque = idle.get(address);
+        return deque == null ? 0 : deque.size();
+    }
+
+    /**
+     * Close the idle connections. Connections still handed out are closed
+     * when they are released.
+     */
+    @Override
+    public void close() {
+        List<Idle> closing = new ArrayList<>();
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (ArrayDeque<Idle> deque : idle.values()) closing.addAll(deque);
+            idle.clear();
+        }
+        evictor.shutdownNow();
+        for (Idle entry : closing) entry.conn.close();
+    }
+
+    /**
+     * Take the most recently released idle connection to an address that
+     * still works, closing those that do not on the way.
+     *
+     * @return the connection, or null if there is none
+     */
+    private ReldatSocket takeIdle(SocketAddress address) {
+        while (true) {
+            Idle entry;
+            int timeout, interval, validation;
+            synchronized (this) {
+                if (closed) throw new IllegalStateException("Connection pool closed");
+                ArrayDeque<Idle> deque = idle.get(address);
+                if (deque == null || deque.isEmpty()) return null;
+                entry = deque.removeFirst();
+                timeout = idleTimeout;
+                interval = validationInterval;
+                validation = validationTimeout;
+            }
+
+            long idleFor = (System.nanoTime() - entry.since) / 1000000;
+            if (entry.conn.isConnected() && idleFor < timeout
+                    && (idleFor < interval || entry.conn.ping(validation))) {
+                return entry.conn;
+            }
+            entry.conn.abort();
+        }
+    }
+
+    /**
+     * Close the connections that have been idle for the idle timeout, and
+     * those closed by the remote socket, and keep the others alive.
+     * <p>
+     * The connections kept are taken out of the pool while that is done,
+     * so they cannot be handed out at the same time.
+     */
+    private void evictIdle() {
+        List<Idle> evicted = new ArrayList<>();
+        Map<SocketAddress, List<Idle>> kept = new HashMap<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Map.Entry<SocketAddress, ArrayDeque<Idle>> deque : idle.entrySet()) {
+                List<Idle> keeping = new ArrayList<>();
+                for (Idle entry : deque.getValue()) {
+                    if ((now - entry.since) / 1000000 >= idleTimeout || !entry.conn.isConnected()) {
+                        evicted.add(entry);
+                    } else {
+                        keeping.add(entry);
+                    }
+                }
+                if (!keeping.isEmpty()) kept.put(deque.getKey(), keeping);
+            }
+            idle.clear();
+        }
+
+        // The remote socket may well be gone, so do not wait for its FINACK
+        for (Idle entry : evicted) entry.conn.abort();
+
+        // No thread is blocked on these, so answer and send keepalives for
+        // them. One found dead is closed, and evicted next time.
+        for (List<Idle> entries : kept.values()) {
+            for (Idle entry : entries) entry.conn.keepAlive();
+        }
+
+        // Put them back behind those released in the meantime, which are
+        // more recent, as long as there is room
+        List<Idle> closing = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<SocketAddress, List<Idle>> entries : kept.entrySet()) {
+                ArrayDeque<Idle> deque = idle.computeIfAbsent(entries.getKey(), k -> new ArrayDeque<>());
+                for (Idle entry : entries.getValue()) {
+                    if (!closed && deque.size() < maxIdle) {
+                        deque.addLast(entry);
+                    } else {
+                        closing.add(entry);
+                    }
+                }
+            }
+        }
+        for (Idle entry : closing) entry.conn.close();
+    }
+
+    /**
+     * An idle connection and when it went idle in nanoseconds.
+     */
+    private static final class Idle {
+        final ReldatSocket conn;
+        final long since = System.nanoTime();
+
+        Idle(ReldatSocket conn) {
+            this.conn = conn;
+        }
+    }
+}
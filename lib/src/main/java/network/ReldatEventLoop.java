@@ -0,0 +1,299 @@
+package network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * A single thread driving the handshakes, windows and timers of many
+ * connections at once.
+ * <p>
+ * The sockets must use the CHANNEL engine. Their channels are registered
+ * with one Selector, and each readable channel is drained without blocking.
+ * Each connection has one timer on a {@link TimerWheel}, due when the
+ * earliest of its retransmission, handshake, ACK and keepalive timers is,
+ * so a loop with thousands of connections only visits those whose timers
+ * are due. Timers are handled between selects. Several loops can share the
+ * connections accepted by one listening socket, see
+ * {@link #listen(ReldatSocket, Supplier, ReldatEventLoop...)}.
+ */
+public class ReldatEventLoop implements Runnable, Closeable {
+    /**
+     * The length of a tick of the timer wheel in nanoseconds, and its
+     * number of buckets. The wheel spans longer than the default keepalive
+     * interval, so most timers are due within one turn.
+     */
+    private static final long TICK = 1000000;
+    private static final int WHEEL_SIZE = 4096;
+
+    private final Selector selector;
+
+    /**
+     * Work submitted from other threads, run on the loop thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The connections owned by this loop, and their timers.
+     */
+    private final Set<Connection> connections = new HashSet<>();
+    private final TimerWheel timers = new TimerWheel(TICK, WHEEL_SIZE, System.nanoTime());
+
+    private volatile boolean closed;
+
+    /**
+     * @throws IOException if the Selector fails to open
+     */
+    public ReldatEventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Accept connections on a listening socket.
+     * <p>
+     * Handshakes are started on this loop, and each new connection is handed
+     * to the next worker in turn, or kept on this loop if there are none.
+     *
+     * @param listener the listening socket, using the CHANNEL engine
+     * @param handlers creates the handler for each new connection
+     * @param workers  the loops to spread the connections over
+     */
+    public void listen(ReldatSocket listener, Supplier<? extends ReldatHandler> handlers,
+                       ReldatEventLoop... workers) {
+        Listener attachment = new Listener(listener, handlers,
+                workers.length == 0 ? new ReldatEventLoop[]{this} : workers.clone());
+        submit(() -> {
+            try {
+                listener.getDatagramChannel().register(selector, SelectionKey.OP_READ, attachment);
+            } catch (ClosedChannelException e) {
+                System.err.println("Listening socket is closed");
+            }
+        });
+    }
+
+    /**
+     * Hand a connection to this loop. This can be called from any thread.
+     *
+     * @param conn    the connection, established or still handshaking
+     * @param handler the handler for its events
+     */
+    public void register(ReldatSocket conn, ReldatHandler handler) {
+        submit(() -> {
+            Connection connection = new Connection(conn, handler);
+            try {
+                conn.getDatagramChannel().register(selector, SelectionKey.OP_READ, connection);
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            connections.add(connection);
+            try {
+                if (conn.isConnected()) connection.connected();
+            } catch (IOException e) {
+                conn.abort();
+            } catch (RuntimeException e) {
+                handlerFailed(e);
+                conn.abort();
+            }
+            connection.updateTimer(System.nanoTime());
+        });
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Report a handler that threw. Only its connection is aborted, the loop
+     * keeps serving the others.
+     */
+    private static void handlerFailed(RuntimeException e) {
+        System.err.println("Handler failed: " + e);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                long next = timers.nextExpiry();
+                long now = System.nanoTime();
+                if (next == Long.MAX_VALUE) {
+                    selector.select();
+                } else if (next - now > 0) {
+                    // Rounded up, so the tick is over when select returns
+                    selector.select((next - now + 999999) / 1000000);
+                } else {
+                    selector.selectNow();
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((Readable) key.attachment()).onReadable();
+                }
+                selector.selectedKeys().clear();
+
+                timers.expire(System.nanoTime());
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        } finally {
+            for (Connection connection : connections) connection.conn.abort();
+            connections.clear();
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Stop the loop, aborting its connections. This can be called from any thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Attachment of a selection key.
+     */
+    private interface Readable {
+        void onReadable();
+    }
+
+    /**
+     * A listening socket starting handshakes.
+     */
+    private final class Listener implements Readable {
+        private final ReldatSocket listener;
+        private final Supplier<? extends ReldatHandler> handlers;
+        private final ReldatEventLoop[] workers;
+        private int nextWorker;
+
+        Listener(ReldatSocket listener, Supplier<? extends ReldatHandler> handlers, ReldatEventLoop[] workers) {
+            this.listener = listener;
+            this.handlers = handlers;
+            this.workers = workers;
+        }
+
+        @Override
+        public void onReadable() {
+            try {
+                ReldatSocket conn;
+                while ((conn = listener.acceptPending(-1)) != null) {
+                    ReldatHandler handler;
+                    try {
+                        handler = handlers.get();
+                    } catch (RuntimeException e) {
+                        handlerFailed(e);
+                        conn.abort();
+                        continue;
+                    }
+                    workers[nextWorker].register(conn, handler);
+                    nextWorker = (nextWorker + 1) % workers.length;
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A connection, its handler and its timer.
+     */
+    private final class Connection extends TimerWheel.Timer implements Readable {
+        private final ReldatSocket conn;
+        private final ReldatHandler handler;
+        private boolean connected;
+
+        Connection(ReldatSocket conn, ReldatHandler handler) {
+            this.conn = conn;
+            this.handler = handler;
+        }
+
+        @Override
+        public void onReadable() {
+            try {
+                ReldatPacket packet;
+                while (!conn.isClosed() && (packet = conn.readPacket(-1)) != null) {
+                    conn.onPacket(packet);
+                    if (!connected && conn.isConnected()) connected();
+
+                    // Deliver right away to keep the receive window open
+                    if (conn.available() > 0) handler.onData(conn);
+                }
+            } catch (DisconnectException e) {
+                disconnected();
+                return;
+            } catch (IOException e) {
+                conn.abort();
+                disconnected();
+                return;
+            } catch (RuntimeException e) {
+                handlerFailed(e);
+                conn.abort();
+                disconnected();
+                return;
+            }
+
+            // Sending may have started a timer
+            updateTimer(System.nanoTime());
+        }
+
+        void connected() throws IOException {
+            connected = true;
+            handler.onConnect(conn);
+        }
+
+        @Override
+        void onExpired(long now) {
+            if (connected && conn.isIdle(now)) conn.abort();
+            updateTimer(now);
+        }
+
+        /**
+         * Move the timer to when the connection's timers are due next, or
+         * drop the connection if it is closed.
+         */
+        void updateTimer(long now) {
+            if (!conn.isClosed()) {
+                try {
+                    long deadline = conn.onTimer(now);
+                    if (!conn.isClosed()) {
+                        timers.schedule(this, deadline);
+                        return;
+                    }
+                } catch (IOException e) {
+                    conn.abort();
+                }
+            }
+            disconnected();
+        }
+
+        /**
+         * Tell the handler the connection is gone, and drop it from the loop.
+         */
+        private void disconnected() {
+            if (connected) {
+                connected = false;
+                try {
+                    handler.onDisconnect(conn);
+                } catch (RuntimeException e) {
+                    handlerFailed(e);
+                }
+            }
+            timers.cancel(this);
+            connections.remove(this);
+        }
+    }
+}
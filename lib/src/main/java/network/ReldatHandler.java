@@ -0,0 +1,38 @@
+package network;
+
+import java.io.IOException;
+
+/**
+ * Callbacks for connections driven by a {@link ReldatEventLoop}.
+ * <p>
+ * All callbacks for a connection run on the thread of the event loop that
+ * owns it, and must not block. Use the non-blocking
+ * {@link ReldatSocket#read(java.nio.ByteBuffer)} and
+ * {@link ReldatSocket#write(java.nio.ByteBuffer)} inside them. A callback
+ * that throws, an IOException or otherwise, aborts its connection only.
+ */
+public interface ReldatHandler {
+    /**
+     * Called once the handshake of an accepted connection completes.
+     *
+     * @param conn the connection
+     * @throws IOException to abort the connection
+     */
+    void onConnect(ReldatSocket conn) throws IOException;
+
+    /**
+     * Called when new data can be read from the connection.
+     *
+     * @param conn the connection
+     * @throws IOException to abort the connection
+     */
+    void onData(ReldatSocket conn) throws IOException;
+
+    /**
+     * Called once the connection is closed, by either side or because the
+     * remote socket stopped answering, see {@link ReldatSocket#setKeepAlive(int, int)}.
+     *
+     * @param conn the connection
+     */
+    void onDisconnect(ReldatSocket conn);
+}
@@ -0,0 +1,41 @@
+package network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream reading the data received on a connection.
+ */
+final class ReldatInputStream extends InputStream {
+    private final ReldatSocket socket;
+
+    ReldatInputStream(ReldatSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        try {
+            return socket.readBlocking(ByteBuffer.wrap(b, off, len));
+        } catch (DisconnectException e) {
+            throw new IOException("Connection timed out");
+        }
+    }
+
+    @Override
+    public int available() {
+        return socket.available();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
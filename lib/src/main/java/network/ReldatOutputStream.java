@@ -0,0 +1,44 @@
+package network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An output stream sending data on a connection.
+ */
+final class ReldatOutputStream extends OutputStream {
+    private final ReldatSocket socket;
+
+    ReldatOutputStream(ReldatSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        try {
+            socket.writeFully(ByteBuffer.wrap(b, off, len));
+        } catch (DisconnectException e) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        try {
+            socket.awaitAcks();
+        } catch (DisconnectException e) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -3,16 +3,75 @@ package network;
 import java.io.*;
 import java.net.DatagramPacket;
 import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.Objects;
 
 public class ReldatPacket implements Serializable {
+    /** Offsets of the header fields from the start of a serialized packet */
+    private static final int SYN_OFFSET = 0, ACK_OFFSET = 1, FIN_OFFSET = 2,
+            CHECKSUM_TYPE_OFFSET = 3, SIZE_OFFSET = 4, WINDOW_OFFSET = 8, SEQ_OFFSET = 12,
+            ACK_NUM_OFFSET = 16, CHECKSUM_OFFSET = 20;
+
+    /** The most SACK blocks a packet can carry, and the size of each one */
+    public static final int MAX_SACK_BLOCKS = 4;
+    private static final int SACK_BLOCK_SIZE = 8, TIMESTAMPS_SIZE = 8;
+
+    /** The size of the stream ID and offset */
+    static final int STREAM_SIZE = 8;
+
+    /** Per-thread scratch space for calculating checksums without allocating */
+    private static final ThreadLocal<ByteBuffer> HEADER_SCRATCH = ThreadLocal.withInitial(() ->
+            ByteBuffer.allocate(CHECKSUM_OFFSET + TIMESTAMPS_SIZE + STREAM_SIZE + MAX_SACK_BLOCKS * SACK_BLOCK_SIZE));
+    private static final ThreadLocal<byte[]> CHECKSUM_SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[16]);
+
     /** Packet headers */
     private boolean SYN, ACK, FIN;
+    private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.DEFAULT;
     private int size, windowSize;
     private int seqNum, ackNum;
+
+    /**
+     * Selective acknowledgments: the start and end sequence numbers of each
+     * block received above ackNum. Their number is carried in the upper
+     * bits of the ACK flag's byte, the blocks follow the checksum.
+     */
+    private int[] sackBlocks;
+    private int sackBlockCount;
+
+    /**
+     * Timestamps for measuring the round trip time: when the packet was
+     * sent and the timestamp of the packet it responds to, in microseconds.
+     * Their presence is flagged in the FIN flag's byte, they follow the
+     * checksum.
+     */
+    private boolean hasTimestamps;
+    private int timestamp, timestampEcho;
+
+    /**
+     * Whether the packet probes the path for a larger segment size, or
+     * whether the remote socket is still there. A probe's data is padding,
+     * and its ACK is flagged as well, with the probe's encoded size as its
+     * ACK number. This is flagged in the FIN flag's byte.
+     */
+    private boolean probe;
+
+    /**
+     * The stream the data belongs to and its offset in the stream, and
+     * whether it ends the stream. Packets without a stream belong to the
+     * connection's own stream, 0. The presence of a stream and its end
+     * are flagged in the FIN flag's byte, the ID and offset follow the
+     * timestamps.
+     */
+    private boolean hasStream, streamFin;
+    private int streamId, streamOffset;
+
+    /**
+     * The checksum received with the packet, or calculated by
+     * computeChecksum for a locally built packet. Null when the headers
+     * have changed since; outgoing checksums are calculated in encode.
+     */
     private byte[] checksum;
 
     /**
@@ -26,6 +85,19 @@ public class ReldatPacket implements Serializable {
     // for header-only packets, but whatever...
     private byte[] data;
 
+    /**
+     * Read-only view of the payload inside the buffer the packet was decoded
+     * from, or that it is sent straight out of. Only one of data and payload
+     * is ever set.
+     */
+    private transient ByteBuffer payload;
+
+    /**
+     * The buffer datagrams are received into, for packets owned by a
+     * {@link PacketPool}, and the reusable payload view into it.
+     */
+    private transient ByteBuffer buffer, view;
+
 
     /**
      * Constructor for packet without data (header-only packet)
@@ -33,64 +105,164 @@ public class ReldatPacket implements Serializable {
     public ReldatPacket(int windowSize, int seqNum) {
         this.windowSize = windowSize;
         this.seqNum = seqNum;
-        this.checksum = calcChecksum();
+    }
+
+    /**
+     * Constructor for a reusable packet that is decoded in place from its
+     * own receive buffer.
+     *
+     * @param buffer the buffer datagrams will be received into
+     */
+    ReldatPacket(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.view = buffer.asReadOnlyBuffer();
     }
 
     public ReldatPacket(byte[] data, int windowSize, int seqNum) {
         this(windowSize, seqNum);
         this.data = data;
         this.size = data.length;
-        this.checksum = calcChecksum();
     }
 
     /**
-     * Calculates the size of the header.
-     * @return the size of the header in bytes or -1 if an error occurs
+     * Constructor for a packet whose payload is sent straight out of a
+     * buffer, without copying it.
+     * <p>
+     * The data between the buffer's position and limit must not change
+     * until the packet is no longer needed.
+     *
+     * @param payload the data
+     */
+    ReldatPacket(ByteBuffer payload, int windowSize, int seqNum) {
+        this(windowSize, seqNum);
+        this.payload = payload.asReadOnlyBuffer();
+        this.size = payload.remaining();
+    }
+
+    /**
+     * Calculates the size of the header when using the default checksum.
+     * @return the size of the header in bytes
      */
     public static int getHeaderSize() {
-        try {
-            return new ReldatPacket(0, 0).getBytes().length;
-        } catch (IOException e) {
-            return -1;
-        }
+        return getHeaderSize(ChecksumAlgorithm.DEFAULT);
+    }
+
+    /**
+     * Calculates the size of the header.
+     * @param algorithm the checksum algorithm the packet uses
+     * @return the size of the header in bytes
+     */
+    public static int getHeaderSize(ChecksumAlgorithm algorithm) {
+        return CHECKSUM_OFFSET + algorithm.getLength();
+    }
+
+    /**
+     * Calculates the size of the header of a packet without SACK blocks.
+     * @param algorithm  the checksum algorithm the packet uses
+     * @param timestamps whether the packet carries timestamps
+     * @return the size of the header in bytes
+     */
+    public static int getHeaderSize(ChecksumAlgorithm algorithm, boolean timestamps) {
+        return getHeaderSize(algorithm) + (timestamps ? TIMESTAMPS_SIZE : 0);
     }
 
-    private byte[] calcChecksum() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-
-            // Buffer for headers
-            ByteBuffer buffer = ByteBuffer.allocate(50);
-            buffer.putInt(SYN ? 1 : 0);
-            buffer.putInt(ACK ? 1 : 0);
-            buffer.putInt(FIN ? 1 : 0);
-            buffer.putInt(size);
-            buffer.putInt(windowSize);
-            buffer.putInt(seqNum);
-            buffer.putInt(ackNum);
-
-            // Update and digest!
-            md.update(buffer.array());
-            if (data != null) md.update(data);
-            return md.digest();
-        } catch (NoSuchAlgorithmException e) {
-            // Should never happen since the algorithm is hardcoded
-            return null;
+    /**
+     * Write the header fields covered by the checksum.
+     */
+    private void writeHeader(ByteBuffer dst) {
+        dst.put((byte) (SYN ? 1 : 0));
+        dst.put((byte) ((ACK ? 1 : 0) | sackBlockCount << 1));
+        dst.put((byte) ((FIN ? 1 : 0) | (hasTimestamps ? 2 : 0) | (probe ? 4 : 0)
+                | (hasStream ? 8 : 0) | (streamFin ? 16 : 0)));
+        dst.put(checksumAlgorithm.getId());
+        dst.putInt(size);
+        dst.putInt(windowSize);
+        dst.putInt(seqNum);
+        dst.putInt(ackNum);
+    }
+
+    /**
+     * Write the timestamps and SACK blocks, which are also covered by the
+     * checksum.
+     */
+    private void writeOptions(ByteBuffer dst) {
+        if (hasTimestamps) dst.putInt(timestamp).putInt(timestampEcho);
+        if (hasStream) dst.putInt(streamId).putInt(streamOffset);
+        for (int i = 0; i < sackBlockCount * 2; ++i) dst.putInt(sackBlocks[i]);
+    }
+
+    /**
+     * Get the size of the timestamps and SACK blocks.
+     */
+    private int getOptionsSize() {
+        return (hasTimestamps ? TIMESTAMPS_SIZE : 0) + (hasStream ? STREAM_SIZE : 0)
+                + sackBlockCount * SACK_BLOCK_SIZE;
+    }
+
+    private void calcChecksum(byte[] dst) {
+        ByteBuffer header = HEADER_SCRATCH.get();
+        header.clear();
+        writeHeader(header);
+        writeOptions(header);
+        header.flip();
+
+        if (data != null) {
+            checksumAlgorithm.calculate(header, ByteBuffer.wrap(data), dst);
+        } else if (payload != null) {
+            int position = payload.position();
+            checksumAlgorithm.calculate(header, payload, dst);
+            payload.position(position);
+        } else {
+            checksumAlgorithm.calculate(header, null, dst);
         }
     }
 
+    /**
+     * Calculate the checksum of a packet built locally and keep it, as if
+     * the packet had been received with it. Changing the packet afterwards
+     * drops the checksum again.
+     */
+    public void computeChecksum() {
+        checksum = new byte[checksumAlgorithm.getLength()];
+        calcChecksum(checksum);
+    }
+
+    /**
+     * Check the checksum the packet was received with, or the one last
+     * calculated by computeChecksum, against its contents. Nothing is
+     * calculated and kept here.
+     *
+     * @return true if the packet has a checksum and it matches
+     */
     public boolean verifyChecksum() {
-        return Arrays.equals(checksum, calcChecksum());
+        int length = checksumAlgorithm.getLength();
+        if (checksum == null || checksum.length != length) return false;
+
+        byte[] expected = CHECKSUM_SCRATCH.get();
+        calcChecksum(expected);
+        for (int i = 0; i < length; ++i) {
+            if (checksum[i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+        checksum = null;
+    }
+
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+        return checksumAlgorithm;
     }
 
     public void setFIN() {
         this.FIN = true;
-        checksum = calcChecksum();
+        checksum = null;
     }
 
     public void setSYN() {
         this.SYN = true;
-        checksum = calcChecksum();
+        checksum = null;
     }
 
     public boolean getSYN() {
@@ -100,7 +272,7 @@ public class ReldatPacket implements Serializable {
     public void setACK(int ackNum) {
         this.ACK = true;
         this.ackNum = ackNum;
-        checksum = calcChecksum();
+        checksum = null;
     }
 
     public boolean getACK() {
@@ -111,6 +283,60 @@ public class ReldatPacket implements Serializable {
         return ackNum;
     }
 
+    /**
+     * Report a block of data received above the cumulative ACK.
+     *
+     * @param start the sequence number of the first packet in the block
+     * @param end   the ACK number of the last packet in the block
+     * @throws IllegalStateException if the packet already has MAX_SACK_BLOCKS blocks
+     */
+    public void addSackBlock(int start, int end) {
+        if (sackBlockCount == MAX_SACK_BLOCKS) throw new IllegalStateException("too many SACK blocks");
+        if (sackBlocks == null) sackBlocks = new int[MAX_SACK_BLOCKS * 2];
+
+        sackBlocks[sackBlockCount * 2] = start;
+        sackBlocks[sackBlockCount * 2 + 1] = end;
+        sackBlockCount++;
+        checksum = null;
+    }
+
+    public int getSackBlockCount() {
+        return sackBlockCount;
+    }
+
+    public int getSackStart(int block) {
+        return sackBlocks[block * 2];
+    }
+
+    public int getSackEnd(int block) {
+        return sackBlocks[block * 2 + 1];
+    }
+
+    /**
+     * Add timestamps to the packet.
+     *
+     * @param timestamp the time the packet is sent in microseconds
+     * @param echo      the timestamp of the packet this one responds to
+     */
+    public void setTimestamps(int timestamp, int echo) {
+        this.hasTimestamps = true;
+        this.timestamp = timestamp;
+        this.timestampEcho = echo;
+        checksum = null;
+    }
+
+    public boolean hasTimestamps() {
+        return hasTimestamps;
+    }
+
+    public int getTimestamp() {
+        return timestamp;
+    }
+
+    public int getTimestampEcho() {
+        return timestampEcho;
+    }
+
     public int getSeqNum() {
         return seqNum;
     }
@@ -119,16 +345,104 @@ public class ReldatPacket implements Serializable {
         return FIN;
     }
 
+    public void setProbe() {
+        this.probe = true;
+        checksum = null;
+    }
+
+    public boolean isProbe() {
+        return probe;
+    }
+
+    /**
+     * Put the packet's data in a stream.
+     *
+     * @param id     the stream ID, not 0
+     * @param offset the offset of the data in the stream
+     * @param fin    whether the data ends the stream
+     */
+    public void setStream(int id, int offset, boolean fin) {
+        this.hasStream = true;
+        this.streamId = id;
+        this.streamOffset = offset;
+        this.streamFin = fin;
+        checksum = null;
+    }
+
+    /**
+     * @return the stream ID, 0 for the connection's own stream
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public int getStreamOffset() {
+        return streamOffset;
+    }
+
+    public boolean isStreamFin() {
+        return streamFin;
+    }
+
     public void setData(byte[] data) {
         this.data = data;
+        this.payload = null;
         this.size = data.length;
-        this.checksum = calcChecksum();
+        this.checksum = null;
     }
 
+    /**
+     * Get the payload as an array.
+     * <p>
+     * For decoded packets the payload is copied out of the receive buffer
+     * the first time this is called. Use {@link #copyData(ByteBuffer)} on
+     * hot paths instead.
+     *
+     * @return the payload or null for header-only packets
+     */
     public byte[] getData() {
+        if (data == null && payload != null) {
+            data = new byte[payload.remaining()];
+            payload.duplicate().get(data);
+            payload = null;
+        }
         return data;
     }
 
+    /**
+     * Copy as much of the payload as fits into a buffer without any
+     * intermediate arrays.
+     *
+     * @param dst the buffer to copy into
+     * @return the number of bytes copied
+     */
+    public int copyData(ByteBuffer dst) {
+        return copyData(0, dst);
+    }
+
+    /**
+     * Copy as much of the payload after an offset as fits into a buffer
+     * without any intermediate arrays.
+     *
+     * @param offset the offset into the payload to start copying from
+     * @param dst    the buffer to copy into
+     * @return the number of bytes copied
+     */
+    public int copyData(int offset, ByteBuffer dst) {
+        int length = Math.max(0, Math.min(size - offset, dst.remaining()));
+        if (data != null) {
+            dst.put(data, offset, length);
+        } else if (payload != null) {
+            int position = payload.position(), limit = payload.limit();
+            payload.position(position + offset).limit(position + offset + length);
+            dst.put(payload);
+            payload.limit(limit).position(position);
+        } else {
+            return 0;
+        }
+        return length;
+    }
+
     public int getSize() {
         return size;
     }
@@ -137,6 +451,11 @@ public class ReldatPacket implements Serializable {
         return windowSize;
     }
 
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        checksum = null;
+    }
+
     /**
      * Get the SocketAddress the packet was sent from.
      *
@@ -146,65 +465,219 @@ public class ReldatPacket implements Serializable {
         return from;
     }
 
-    public byte[] getBytes() throws IOException {
-        try (ByteArrayOutputStream bstream = new ByteArrayOutputStream();
-             DataOutputStream stream = new DataOutputStream(bstream)) {
+    /**
+     * Get the number of bytes this packet takes up on the wire.
+     *
+     * @return the size of the header, timestamps and SACK blocks plus the payload
+     */
+    public int getEncodedSize() {
+        return getHeaderSize(checksumAlgorithm) + getOptionsSize() + size;
+    }
 
-            stream.writeBoolean(SYN);
-            stream.writeBoolean(ACK);
-            stream.writeBoolean(FIN);
-            stream.writeInt(size);
-            stream.writeInt(windowSize);
-            stream.writeInt(seqNum);
-            stream.writeInt(ackNum);
-            stream.write(checksum);
-            if (data != null) stream.write(data);
+    /**
+     * Serialize the packet into a buffer, starting at the buffer's position.
+     * <p>
+     * The buffer can be heap or direct. The position is advanced past the
+     * packet. This is where outgoing checksums are calculated, so it only
+     * happens once per packet sent.
+     *
+     * @param dst the buffer to write to
+     * @throws BufferOverflowException if the packet does not fit in the buffer
+     */
+    public void encode(ByteBuffer dst) {
+        if (dst.remaining() < getEncodedSize()) throw new BufferOverflowException();
+
+        byte[] sum = CHECKSUM_SCRATCH.get();
+        calcChecksum(sum);
 
-            stream.flush();
-            return bstream.toByteArray();
+        writeHeader(dst);
+        dst.put(sum, 0, checksumAlgorithm.getLength());
+        writeOptions(dst);
+        copyData(dst);
+    }
+
+    /**
+     * Update the ACK number, window and timestamps of a packet that was
+     * encoded into a buffer, along with its checksum.
+     * <p>
+     * The rest of the packet is left as it is, so resending a packet only
+     * takes a pass over its data to calculate the checksum. The packet
+     * must carry an ACK, and its timestamps are only updated if it has
+     * them.
+     *
+     * @param datagram      the encoded packet, between position and limit
+     * @param ackNum        the new ACK number
+     * @param windowSize    the new window size
+     * @param timestamp     the new timestamp
+     * @param timestampEcho the new timestamp echo
+     */
+    static void updateEncoded(ByteBuffer datagram, int ackNum, int windowSize, int timestamp, int timestampEcho) {
+        int start = datagram.position();
+        ChecksumAlgorithm algorithm = ChecksumAlgorithm.fromId(datagram.get(start + CHECKSUM_TYPE_OFFSET));
+        int optionsStart = start + getHeaderSize(algorithm);
+        boolean timestamps = (datagram.get(start + FIN_OFFSET) & 2) != 0;
+        boolean stream = (datagram.get(start + FIN_OFFSET) & 8) != 0;
+        int sackBlocks = (datagram.get(start + ACK_OFFSET) & 0xff) >>> 1;
+        int optionsEnd = optionsStart + (timestamps ? TIMESTAMPS_SIZE : 0) + (stream ? STREAM_SIZE : 0)
+                + sackBlocks * SACK_BLOCK_SIZE;
+
+        datagram.putInt(start + WINDOW_OFFSET, windowSize);
+        datagram.putInt(start + ACK_NUM_OFFSET, ackNum);
+        if (timestamps) {
+            datagram.putInt(optionsStart, timestamp);
+            datagram.putInt(optionsStart + 4, timestampEcho);
+        }
+
+        // The checksum covers the header fields and options around it
+        ByteBuffer header = HEADER_SCRATCH.get();
+        header.clear();
+        for (int i = start; i < start + CHECKSUM_OFFSET; ++i) header.put(datagram.get(i));
+        for (int i = optionsStart; i < optionsEnd; ++i) header.put(datagram.get(i));
+        header.flip();
+
+        ByteBuffer payload = datagram.duplicate();
+        payload.position(optionsEnd);
+        byte[] sum = CHECKSUM_SCRATCH.get();
+        algorithm.calculate(header, payload, sum);
+        for (int i = 0; i < algorithm.getLength(); ++i) datagram.put(start + CHECKSUM_OFFSET + i, sum[i]);
+    }
+
+    public byte[] getBytes() {
+        byte[] bytes = new byte[getEncodedSize()];
+        encode(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Deserialize a packet from a buffer, starting at the buffer's position.
+     * <p>
+     * The header fields are read in place and the payload is not copied:
+     * the packet keeps a read-only view into the buffer, so the buffer must
+     * not be reused until the packet's data has been consumed. The position
+     * is advanced past the packet.
+     *
+     * @param src the buffer to read from
+     * @return the packet
+     * @throws IOException when the buffer does not hold a complete packet
+     */
+    public static ReldatPacket decode(ByteBuffer src) throws IOException {
+        ReldatPacket packet = new ReldatPacket(0, 0);
+        int size = packet.readHeader(src);
+
+        if (size > 0) {
+            ByteBuffer view = src.slice().asReadOnlyBuffer();
+            view.limit(size);
+            packet.payload = view;
+        }
+        src.position(src.position() + size);
+
+        return packet;
+    }
+
+    /**
+     * Get the buffer a pooled packet receives datagrams into.
+     *
+     * @return the buffer or null if the packet is not pooled
+     */
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Decode a pooled packet in place from the datagram in its buffer,
+     * between position and limit.
+     * <p>
+     * Only the checksum is copied out of the buffer, into an array that is
+     * reused between datagrams.
+     *
+     * @param from the SocketAddress the datagram was sent from
+     * @throws IOException when the buffer does not hold a complete packet
+     */
+    void decodeBuffer(SocketAddress from) throws IOException {
+        this.from = from;
+        int size = readHeader(buffer);
+
+        if (size > 0) {
+            view.limit(buffer.position() + size).position(buffer.position());
+            payload = view;
         }
     }
 
+    /**
+     * Read and validate the header fields into this packet.
+     * <p>
+     * On return the position of the buffer is at the start of the payload.
+     *
+     * @param src the buffer to read from
+     * @return the size of the payload
+     * @throws IOException when the buffer does not hold a complete packet
+     */
+    private int readHeader(ByteBuffer src) throws IOException {
+        if (src.remaining() < CHECKSUM_OFFSET) throw new IOException("truncated header");
+
+        int start = src.position();
+        ChecksumAlgorithm algorithm = ChecksumAlgorithm.fromId(src.get(start + CHECKSUM_TYPE_OFFSET));
+        if (algorithm == null) throw new IOException("unsupported checksum algorithm");
+
+        int sackBlockCount = (src.get(start + ACK_OFFSET) & 0xFF) >>> 1;
+        if (sackBlockCount > MAX_SACK_BLOCKS) throw new IOException("too many SACK blocks");
+
+        boolean hasTimestamps = (src.get(start + FIN_OFFSET) & 2) != 0;
+        boolean hasStream = (src.get(start + FIN_OFFSET) & 8) != 0;
+        int headerSize = getHeaderSize(algorithm) + (hasTimestamps ? TIMESTAMPS_SIZE : 0)
+                + (hasStream ? STREAM_SIZE : 0) + sackBlockCount * SACK_BLOCK_SIZE;
+        int size = src.getInt(start + SIZE_OFFSET);
+        if (size < 0 || size > src.remaining() - headerSize) {
+            throw new IOException("invalid data size " + size);
+        }
+
+        SYN = src.get(start + SYN_OFFSET) != 0;
+        ACK = (src.get(start + ACK_OFFSET) & 1) != 0;
+        FIN = (src.get(start + FIN_OFFSET) & 1) != 0;
+        probe = (src.get(start + FIN_OFFSET) & 4) != 0;
+        streamFin = (src.get(start + FIN_OFFSET) & 16) != 0;
+        checksumAlgorithm = algorithm;
+        this.size = size;
+        windowSize = src.getInt(start + WINDOW_OFFSET);
+        seqNum = src.getInt(start + SEQ_OFFSET);
+        ackNum = src.getInt(start + ACK_NUM_OFFSET);
+        data = null;
+        payload = null;
+
+        if (checksum == null || checksum.length != algorithm.getLength()) {
+            checksum = new byte[algorithm.getLength()];
+        }
+        src.position(start + CHECKSUM_OFFSET);
+        src.get(checksum);
+
+        this.hasTimestamps = hasTimestamps;
+        if (hasTimestamps) {
+            timestamp = src.getInt();
+            timestampEcho = src.getInt();
+        }
+
+        this.hasStream = hasStream;
+        streamId = hasStream ? src.getInt() : 0;
+        streamOffset = hasStream ? src.getInt() : 0;
+
+        if (sackBlockCount > 0 && sackBlocks == null) sackBlocks = new int[MAX_SACK_BLOCKS * 2];
+        this.sackBlockCount = sackBlockCount;
+        for (int i = 0; i < sackBlockCount * 2; ++i) sackBlocks[i] = src.getInt();
+
+        return size;
+    }
+
     /**
      * Deserialize a bytes array into a ReldatPacket.
+     * <p>
+     * The packet's data shares the array, see {@link #decode(ByteBuffer)}.
      *
      * @param bytes the array of bytes to deserialize
      * @return the packet
      * @throws IOException when deserialization fails due to corrupt data
      */
     public static ReldatPacket fromBytes(byte[] bytes) throws IOException {
-        try (ByteArrayInputStream bstream = new ByteArrayInputStream(bytes);
-             DataInputStream stream = new DataInputStream(bstream)) {
-
-            boolean SYN = stream.readBoolean();
-            boolean ACK = stream.readBoolean();
-            boolean FIN = stream.readBoolean();
-
-            int size = stream.readInt();
-            int windowSize = stream.readInt();
-            int seqNum = stream.readInt();
-            int ackNum = stream.readInt();
-
-            byte[] checksum = new byte[16];
-            stream.read(checksum);
-
-            ReldatPacket packet = new ReldatPacket(windowSize, seqNum);
-            packet.SYN = SYN;
-            packet.ACK = ACK;
-            packet.FIN = FIN;
-            packet.size = size;
-            packet.windowSize = windowSize;
-            packet.ackNum = ackNum;
-            packet.checksum = checksum;
-
-            if (size > 0) {
-                byte[] data = new byte[size];
-                stream.read(data);
-                packet.data = data;
-            }
-
-            return packet;
-        }
+        return decode(ByteBuffer.wrap(bytes));
     }
 
     /**
@@ -215,7 +688,8 @@ public class ReldatPacket implements Serializable {
      * @throws IOException when deserialization fails
      */
     public static ReldatPacket fromUDP(DatagramPacket datagram) throws IOException {
-        ReldatPacket packet = fromBytes(datagram.getData());
+        ReldatPacket packet = decode(ByteBuffer.wrap(datagram.getData(),
+                datagram.getOffset(), datagram.getLength()));
         packet.from = datagram.getSocketAddress();
         return packet;
     }
@@ -230,12 +704,34 @@ public class ReldatPacket implements Serializable {
         return SYN == p2.SYN
                 && ACK == p2.ACK
                 && FIN == p2.FIN
+                && probe == p2.probe
                 && size == p2.size
                 && windowSize == p2.windowSize
-                && Arrays.equals(checksum, p2.checksum)
+                && checksumAlgorithm == p2.checksumAlgorithm
                 && seqNum == p2.seqNum
                 && ackNum == p2.ackNum
-                && Arrays.equals(data, p2.data);
+                && hasTimestamps == p2.hasTimestamps
+                && timestamp == p2.timestamp
+                && timestampEcho == p2.timestampEcho
+                && hasStream == p2.hasStream
+                && streamFin == p2.streamFin
+                && streamId == p2.streamId
+                && streamOffset == p2.streamOffset
+                && sackBlocksEqual(p2)
+                && Objects.equals(payloadView(), p2.payloadView());
+    }
+
+    private boolean sackBlocksEqual(ReldatPacket p2) {
+        if (sackBlockCount != p2.sackBlockCount) return false;
+        for (int i = 0; i < sackBlockCount * 2; ++i) {
+            if (sackBlocks[i] != p2.sackBlocks[i]) return false;
+        }
+        return true;
+    }
+
+    private ByteBuffer payloadView() {
+        if (data != null) return ByteBuffer.wrap(data);
+        return payload == null ? null : payload.duplicate();
     }
 
     @Override
@@ -1,24 +1,88 @@
 package network;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.Queue;
-import java.util.TreeSet;
-import java.util.concurrent.ArrayBlockingQueue;
-
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A reliable connection on top of UDP.
+ * <p>
+ * The protocol itself is driven by two events: a packet arriving
+ * ({@link #onPacket(ReldatPacket)}) and time passing ({@link #onTimer(long)}).
+ * The blocking send/receive/accept/connect methods wait for those events on
+ * the calling thread, while a {@link ReldatEventLoop} can drive many
+ * connections from a single thread through the non-blocking
+ * {@link #read(ByteBuffer)} and {@link #write(ByteBuffer)}.
+ * <p>
+ * Connections are full duplex: one thread can send while another
+ * receives, e.g. through {@link #getOutputStream()} and
+ * {@link #getInputStream()}. A connection on an event loop must only be
+ * used from the loop's thread.
+ * <p>
+ * Besides its own stream, a connection can carry any number of
+ * independent {@link ReldatStream}s if both sides enable them, so a lost
+ * packet or a large transfer on one does not hold up the others.
+ */
 public class ReldatSocket extends DatagramSocket {
     /**
-     * The maximum segment size in bytes
+     * The engines a ReldatSocket can send and receive datagrams with.
+     */
+    public enum Engine {
+        /** Blocking java.net.DatagramSocket using socket timeouts */
+        BLOCKING,
+        /** Non-blocking java.nio DatagramChannel waiting on a Selector */
+        CHANNEL
+    }
+
+    /**
+     * The largest datagram a socket sends or receives by default in bytes:
+     * an Ethernet frame minus the IPv4 and UDP headers
+     */
+    public static final int DEFAULT_MSS = 1472;
+
+    /**
+     * The smallest and largest datagram sizes a socket can be set to, and
+     * the size a connection starts at before probing for larger ones
+     */
+    private static final int MIN_MSS = 256, MAX_MSS = 65507, BASE_MSS = 1200;
+
+    /**
+     * Path MTU probing: how many times a probe size is tried, and how close
+     * the search gets to the largest size that works in bytes
+     */
+    private static final int MAX_PROBES = 3, PROBE_STEP = 32;
+
+    /**
+     * Retransmission timeout in ms until the round trip time is measured
+     */
+    private static final int TIMEOUT = 1000;
+
+    /**
+     * How many in-order packets are received before they are acknowledged,
+     * and how long in ms an ACK is delayed waiting for more of them. The
+     * delay is kept below the minimum retransmission timeout.
      */
-    private static final int MSS = 1000;
+    private static final int ACK_EVERY = 2, ACK_DELAY = 20;
 
     /**
-     * Timeout in ms
+     * The size of the file regions sendFile and receiveToFile map at a time
      */
-    private static final int TIMEOUT = 2000;
+    private static final int MAP_SIZE = 64 * 1024 * 1024;
 
     /**
      * Timeout used for connection related operations
@@ -26,12 +90,19 @@ public class ReldatSocket extends DatagramSocket {
     public static final int CONNECT_TIMEOUT = 20000;
 
     /**
-     * The size of the receive window in bytes.
+     * By default a keepalive probe is sent after 2 seconds in which nothing
+     * is received, and the remote socket is taken to be gone once 3 of
+     * them in a row go unanswered.
+     */
+    public static final int DEFAULT_KEEPALIVE_INTERVAL = 2000, DEFAULT_KEEPALIVE_THRESHOLD = 3;
+
+    /**
+     * The size of the receive window in packets.
      */
     private final int windowSize;
 
     /**
-     * The size of the send window in bytes.
+     * The size of the send window in packets.
      */
     private int sendWindowSize;
 
@@ -42,398 +113,2331 @@ public class ReldatSocket extends DatagramSocket {
     private int seqNum;
 
     /**
-     * The sequence number of the last received packet in order
+     * The sequence number of the next packet expected in order from the
+     * remote socket. This is also the cumulative ACK number.
+     */
+    private int expectedSeqNum;
+
+    /**
+     * The time of the last received packet in nanoseconds.
+     */
+    private long timeOfLastReceive;
+
+    /**
+     * How long in ms nothing is received before a keepalive probe is sent,
+     * 0 to disconnect after CONNECT_TIMEOUT instead, how many unanswered
+     * probes make the remote socket count as gone, and how many have been
+     * sent since something was last received.
+     */
+    private int keepAliveInterval = DEFAULT_KEEPALIVE_INTERVAL;
+    private int keepAliveThreshold = DEFAULT_KEEPALIVE_THRESHOLD;
+    private int keepAlivesSent;
+
+    /**
+     * The socket address this socket is connected to.
+     */
+    private SocketAddress remoteSocketAddress;
+    private boolean isConnected;
+
+    /**
+     * The SYNACK of an accepted connection waiting for the final ACK of
+     * the handshake, the number of times it has been sent, and when the
+     * handshake started, when the SYNACK was last sent and when it is sent
+     * next in nanoseconds.
+     */
+    private ReldatPacket synack;
+    private int handshakeAttempts;
+    private long handshakeStart, handshakeSentAt, handshakeDeadline;
+
+    /**
+     * The retransmission timeout, adapted to the round trip time.
+     */
+    private final RttEstimator rtt = new RttEstimator(TIMEOUT);
+
+    /**
+     * The congestion control algorithm, and its state for the connection.
+     */
+    private CongestionAlgorithm congestionAlgorithm = CongestionAlgorithm.DEFAULT;
+    private CongestionController congestion = congestionAlgorithm.newController();
+
+    /**
+     * For listening sockets: when a connection was last opened for each
+     * remote address in nanoseconds, so resent SYNs are ignored.
+     */
+    private final Map<SocketAddress, Long> recentSyns = new HashMap<>();
+
+    /**
+     * Guards the connection's state for threads sending and receiving at
+     * the same time. It is released while waiting for a datagram.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled whenever the thread waiting for datagrams handles one or
+     * stops waiting.
+     */
+    private final Condition progress = lock.newCondition();
+
+    /**
+     * Whether a thread is waiting for a datagram, and whether close has
+     * taken over receiving for the FIN exchange.
+     */
+    private boolean polling, closing;
+
+    /**
+     * Data written but not yet split into packets.
+     */
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+
+    /**
+     * Packets sent but not yet acknowledged, in order.
+     */
+    private final SendWindow sendWindow;
+
+    /**
+     * Whether a segment has been resent and not everything sent before it
+     * has been acknowledged yet, when it was resent in nanoseconds and the
+     * sequence number that ends the recovery.
+     */
+    private boolean recovering;
+    private long recoveryStart;
+    private int recoveryPoint;
+
+    /**
+     * The number of duplicate ACKs that trigger a fast retransmit, 0 to
+     * disable it, and the ACK number and window of the last ACK with the
+     * number of times it was repeated.
+     */
+    private int duplicateAckThreshold = 3;
+    private int lastAckNum = -1, lastAckWindow;
+    private int duplicateAcks;
+
+    /**
+     * Packets received out of order, waiting for the gap before them to
+     * be filled.
+     */
+    private final ReceiveWindow receiveWindow;
+
+    /**
+     * Packets received in order whose data has not been read yet, and how
+     * much of the first one has been read.
+     */
+    private final ArrayDeque<ReldatPacket> readable = new ArrayDeque<>();
+    private int readOffset;
+
+    /**
+     * Whether this socket offers or accepts streams, and whether they were
+     * negotiated for the connection.
+     */
+    private boolean streamsEnabled;
+    private boolean streams;
+
+    /**
+     * The open streams by ID, the ID of the next stream opened locally, the
+     * streams opened by the remote socket that have not been accepted yet,
+     * and the streams with data queued, in the order they take turns.
+     */
+    private final Map<Integer, ReldatStream> streamsById = new HashMap<>();
+    private int nextStreamId;
+    private final ArrayDeque<ReldatStream> acceptable = new ArrayDeque<>();
+    private final ArrayDeque<ReldatStream> ready = new ArrayDeque<>();
+
+    /**
+     * The number of received packets held by streams, and whether a stream
+     * gets the next packet sent rather than the connection's own data.
+     */
+    private int streamHeld;
+    private boolean streamTurn;
+
+    /**
+     * The number of packets received in order since the last ACK, whether
+     * an ACK is waiting to be sent, and when it is due in nanoseconds.
+     */
+    private int unackedPackets;
+    private boolean ackPending;
+    private long ackDeadline;
+
+    /**
+     * The receive window advertised in the last packet sent.
+     */
+    private int lastAdvertisedWindow;
+
+    /**
+     * The checksum algorithms this socket supports, most preferred first.
+     */
+    private List<ChecksumAlgorithm> checksums =
+            Arrays.asList(ChecksumAlgorithm.CRC32C, ChecksumAlgorithm.CRC32, ChecksumAlgorithm.MD5);
+
+    /**
+     * The checksum algorithm negotiated for the connection.
+     */
+    private ChecksumAlgorithm checksum = ChecksumAlgorithm.DEFAULT;
+
+    /**
+     * Whether this socket offers or accepts SACK blocks, and whether they
+     * were negotiated for the connection.
+     */
+    private boolean sackEnabled = true;
+    private boolean sack;
+
+    /**
+     * Whether this socket offers or accepts timestamps, whether they were
+     * negotiated for the connection, and the timestamp to echo back.
+     */
+    private boolean timestampsEnabled = true;
+    private boolean timestamps;
+    private int timestampRecent;
+
+    /**
+     * The largest datagram this socket sends or receives.
+     */
+    private final int maxSegmentSize;
+
+    /**
+     * The largest datagram the connection sends, and the limit it can
+     * grow to: the smaller of both sides' maxSegmentSize.
+     */
+    private int segmentSize, segmentLimit;
+
+    /**
+     * Whether to probe for the largest segment size the path carries.
+     * The search is done once the size it can still grow to is within
+     * PROBE_STEP of the size that works.
+     */
+    private boolean mtuProbing;
+
+    /**
+     * The probe size being tried or 0, the size that failed, whether a probe
+     * is waiting for its ACK, how many times it was sent and when it is
+     * considered lost in nanoseconds.
+     */
+    private int probeSize, probeCeiling;
+    private boolean probePending;
+    private int probeAttempts;
+    private long probeDeadline;
+
+    /**
+     * The number of probe ACKs received, which ping waits for to change.
+     */
+    private int probeAcks;
+
+    /**
+     * The engine datagrams are sent and received through.
+     */
+    private final Engine engine;
+    private final DatagramTransport transport;
+
+    /**
+     * Reusable buffer outgoing packets are encoded into.
+     */
+    private final ByteBuffer sendBuffer;
+
+    /**
+     * Pool of packets incoming datagrams are received into.
+     */
+    private final PacketPool pool;
+
+
+    /**
+     * Construct a ReldatSocket bound on a specific port.
+     *
+     * @param port       the port to bind on
+     * @param windowSize the receiving window size
+     * @throws IOException exception inherited from parent DatagramSocket
+     */
+    public ReldatSocket(int port, int windowSize) throws IOException {
+        this(port, windowSize, Engine.BLOCKING);
+    }
+
+    /**
+     * Construct a ReldatSocket bound on a specific port using a specific engine.
+     * <p>
+     * With the CHANNEL engine the socket inherited from DatagramSocket is
+     * left unbound, and all I/O goes through a DatagramChannel instead.
+     *
+     * @param port       the port to bind on
+     * @param windowSize the receiving window size
+     * @param engine     the engine to send and receive datagrams with
+     * @throws IOException if the socket fails to open
+     */
+    public ReldatSocket(int port, int windowSize, Engine engine) throws IOException {
+        this(port, windowSize, engine, DEFAULT_MSS);
+    }
+
+    /**
+     * Construct a ReldatSocket bound on a specific port using a specific
+     * engine and maximum segment size.
+     * <p>
+     * The maximum segment size is the largest datagram the socket sends or
+     * receives. Connections use the smaller of both sides' sizes, which is
+     * negotiated during the handshake.
+     *
+     * @param port           the port to bind on
+     * @param windowSize     the receiving window size
+     * @param engine         the engine to send and receive datagrams with
+     * @param maxSegmentSize the largest datagram in bytes, up to 65507
+     * @throws IOException if the socket fails to open
+     */
+    public ReldatSocket(int port, int windowSize, Engine engine, int maxSegmentSize) throws IOException {
+        this(port, windowSize, engine, maxSegmentSize, null);
+    }
+
+    /**
+     * Construct an unbound ReldatSocket that sends and receives datagrams
+     * through a given transport, e.g. one that loses some of them.
+     *
+     * @param transport  the transport to use
+     * @param windowSize the receiving window size
+     * @throws IOException if the socket fails to open
+     */
+    ReldatSocket(DatagramTransport transport, int windowSize) throws IOException {
+        this(0, windowSize, Engine.CHANNEL, DEFAULT_MSS, transport);
+    }
+
+    private ReldatSocket(int port, int windowSize, Engine engine, int maxSegmentSize,
+                         DatagramTransport transport) throws IOException {
+        super(engine == Engine.BLOCKING ? new InetSocketAddress(port) : null);
+        if (maxSegmentSize < MIN_MSS || maxSegmentSize > MAX_MSS) {
+            super.close();
+            throw new IllegalArgumentException("invalid maximum segment size " + maxSegmentSize);
+        }
+        this.windowSize = windowSize;
+        this.engine = engine;
+        this.maxSegmentSize = maxSegmentSize;
+        this.segmentSize = this.segmentLimit = Math.min(maxSegmentSize, BASE_MSS);
+
+        // this.seqNum = new Random().nextInt() & Integer.MAX_VALUE;
+        seqNum = 0;
+
+        // Set receive buffer size
+        int receiveBufferSize = windowSize * maxSegmentSize * 2;
+        if (transport != null) {
+            this.transport = transport;
+        } else if (engine == Engine.BLOCKING) {
+            this.setReceiveBufferSize(receiveBufferSize);
+            this.transport = new SocketTransport();
+        } else {
+            try {
+                this.transport = new ChannelTransport(port, receiveBufferSize);
+            } catch (IOException e) {
+                super.close();
+                throw e;
+            }
+        }
+
+        boolean direct = this.transport.prefersDirectBuffers();
+        this.sendBuffer = direct ? ByteBuffer.allocateDirect(maxSegmentSize) : ByteBuffer.allocate(maxSegmentSize);
+        this.receiveWindow = new ReceiveWindow(windowSize);
+        this.sendWindow = new SendWindow(maxSegmentSize, direct);
+        // Room for a full receive window plus a full window of unread data
+        this.pool = new PacketPool(windowSize * 2 + 2, maxSegmentSize, direct);
+    }
+
+    /**
+     * Construct a ReldatSocket bound on a random port.
+     *
+     * @param windowSize the receiving window size
+     * @throws IOException exception inherited from parent DatagramSocket
+     */
+    public ReldatSocket(int windowSize) throws IOException {
+        this(0, windowSize);
+    }
+
+    /**
+     * Set the checksum algorithms offered or accepted during the handshake.
+     * <p>
+     * This must be called before connect or accept. Connections accepted by
+     * this socket inherit the setting.
+     *
+     * @param algorithms the supported algorithms, most preferred first
+     */
+    public void setChecksumAlgorithms(ChecksumAlgorithm... algorithms) {
+        this.checksums = Arrays.asList(algorithms.clone());
+    }
+
+    /**
+     * Set whether SACK blocks are offered or accepted during the handshake.
+     * <p>
+     * This must be called before connect or accept. Connections accepted by
+     * this socket inherit the setting.
+     *
+     * @param enabled true to use SACK blocks when the remote socket supports them
+     */
+    public void setSackEnabled(boolean enabled) {
+        this.sackEnabled = enabled;
+    }
+
+    /**
+     * Set whether timestamps are offered or accepted during the handshake.
+     * <p>
+     * Timestamps give a round trip time sample for every ACK, even for
+     * retransmitted packets. Without them only packets sent once are
+     * measured. This must be called before connect or accept. Connections
+     * accepted by this socket inherit the setting.
+     *
+     * @param enabled true to use timestamps when the remote socket supports them
+     */
+    public void setTimestampsEnabled(boolean enabled) {
+        this.timestampsEnabled = enabled;
+    }
+
+    /**
+     * Set whether streams are offered or accepted during the handshake.
+     * <p>
+     * Only enable this when the application accepts the remote socket's
+     * streams, see {@link #acceptStream()}. This must be called before
+     * connect or accept. Connections accepted by this socket inherit the
+     * setting.
+     *
+     * @param enabled true to carry streams when the remote socket supports them
+     */
+    public void setStreamsEnabled(boolean enabled) {
+        this.streamsEnabled = enabled;
+    }
+
+    /**
+     * Set the congestion control algorithm that limits the send window.
+     * <p>
+     * This must be called before connect or accept. Connections accepted by
+     * this socket inherit the setting.
+     *
+     * @param algorithm the algorithm
+     */
+    public void setCongestionAlgorithm(CongestionAlgorithm algorithm) {
+        this.congestionAlgorithm = algorithm;
+        this.congestion = algorithm.newController();
+    }
+
+    /**
+     * Set how many duplicate ACKs make the oldest unacknowledged packet
+     * count as lost, so it is resent without waiting for its timeout.
+     * <p>
+     * Connections accepted by this socket inherit the setting.
+     *
+     * @param threshold the number of duplicate ACKs, 0 to only resend on timeouts
+     */
+    public void setDuplicateAckThreshold(int threshold) {
+        if (threshold < 0) throw new IllegalArgumentException("negative threshold");
+        this.duplicateAckThreshold = threshold;
+    }
+
+    /**
+     * Set how quiet connections are kept open.
+     * <p>
+     * Once nothing has been received for the interval, a probe without
+     * data is sent, and another every interval until something arrives. A
+     * remote socket answers probes whenever a thread is blocked on the
+     * connection, it is on an event loop or it is idle in a
+     * {@link ReldatConnectionPool}, so a quiet connection stays open as
+     * long as both sides are there. Once threshold probes in a row go
+     * unanswered the remote socket is taken to be gone, and the connection
+     * is closed. With an interval of 0 no probes are sent, and the
+     * connection is closed once nothing has been received for
+     * CONNECT_TIMEOUT.
+     * <p>
+     * Connections accepted by this socket inherit the setting.
+     *
+     * @param interval  the time in milliseconds, 0 to turn keepalives off
+     * @param threshold the number of unanswered probes
+     */
+    public void setKeepAlive(int interval, int threshold) {
+        if (interval < 0 || threshold < 1) throw new IllegalArgumentException("invalid keepalive");
+        this.keepAliveInterval = interval;
+        this.keepAliveThreshold = threshold;
+    }
+
+    /**
+     * Set whether connections probe for the largest segment size the path
+     * carries.
+     * <p>
+     * Connections then start with segments of at most 1200 bytes, and
+     * while they are sending data try larger padding-only probes, up to the
+     * negotiated maximum segment size, keeping the largest that gets
+     * through. Datagrams are sent with the don't fragment bit where the
+     * platform supports it, otherwise IP fragmentation hides the path MTU.
+     * This must be called before connect or accept. Connections accepted by
+     * this socket inherit the setting.
+     *
+     * @param enabled true to probe
+     */
+    public void setMtuProbing(boolean enabled) {
+        this.mtuProbing = enabled;
+    }
+
+    /**
+     * Get the size of the largest datagram the connection currently sends.
+     *
+     * @return the size in bytes
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Get the congestion control algorithm that limits the send window.
+     *
+     * @return the algorithm
+     */
+    public CongestionAlgorithm getCongestionAlgorithm() {
+        return congestionAlgorithm;
+    }
+
+    /**
+     * Get the number of packets the congestion controller currently lets
+     * the connection have in flight.
+     *
+     * @return the congestion window in packets
+     */
+    public int getCongestionWindow() {
+        return congestion.getWindow();
+    }
+
+    /**
+     * Get the smoothed round trip time of the connection.
+     *
+     * @return the time in milliseconds, or 0 before it has been measured
+     */
+    public double getSmoothedRtt() {
+        return rtt.getSrtt() / 1e6;
+    }
+
+    /**
+     * Check if SACK blocks were negotiated for the connection.
+     *
+     * @return true if both sides report and use SACK blocks
+     */
+    public boolean isSackNegotiated() {
+        return sack;
+    }
+
+    /**
+     * Check if streams were negotiated for the connection.
+     *
+     * @return true if both sides carry streams
+     */
+    public boolean isStreamsNegotiated() {
+        return streams;
+    }
+
+    /**
+     * Get the checksum algorithm negotiated for the connection.
+     *
+     * @return the algorithm
+     */
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+        return checksum;
+    }
+
+    /**
+     * Blocks until a new connection is accepted
+     * <p>
+     * The connection is just a new ReldatSocket for the connection
+     *
+     * @return a new socket for the newly accepted connection
+     */
+    public ReldatSocket accept() {
+        // Blocks until a connection is accepted
+        while (true) {
+            try {
+                // Blocks until receiving a SYN packet
+                ReldatSocket conn = acceptPending(0);
+
+                // Wait for the final ACK over CONNECT_TIMEOUT.
+                // The SYNACK is resent by the connection's timer.
+                while (conn.isHandshaking()) conn.poll();
+
+                if (conn.isConnected()) {
+                    return conn;
+                } else {
+                    System.err.println("Failed to receive final ACK. Connection reset");
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            } catch (DisconnectException e) {
+                System.err.println("Connection reset during handshake");
+            }
+        }
+    }
+
+    /**
+     * Start the handshake for the next connection request.
+     * <p>
+     * This reads datagrams received by this socket until it finds a SYN.
+     * SYNs resent by a remote address that already got a
+     * connection within CONNECT_TIMEOUT are dropped, the connection's own
+     * timer resends the SYNACK.
+     *
+     * @param timeout the timeout in milliseconds, see {@link #readPacket(int)}
+     * @return the new connection, still handshaking, or null if there is no
+     * connection request before the timeout
+     * @throws IOException if the socket for the connection fails to open
+     */
+    ReldatSocket acceptPending(int timeout) throws IOException {
+        ReldatPacket packet;
+        while ((packet = readPacket(timeout)) != null) {
+            if (!packet.getSYN() || packet.getACK()) {
+                pool.release(packet);
+                continue;
+            }
+
+            long now = System.nanoTime();
+            recentSyns.values().removeIf(time -> (now - time) / 1000000 > CONNECT_TIMEOUT);
+            if (recentSyns.putIfAbsent(packet.getSocketAddress(), now) != null) {
+                pool.release(packet);
+                continue;
+            }
+
+            return openConnection(packet);
+        }
+        return null;
+    }
+
+    /**
+     * Create a new socket for a connection requested by a SYN packet and
+     * send the SYNACK.
+     * <p>
+     * The connection is established once it receives the final ACK of the
+     * handshake. Until then its timer resends the SYNACK, and gives up
+     * after CONNECT_TIMEOUT. The SYN is released back to the pool.
+     *
+     * @param syn the SYN packet received by this socket
+     * @return the new connection
+     * @throws IOException if the socket for the connection fails to open
+     */
+    ReldatSocket openConnection(ReldatPacket syn) throws IOException {
+        // Create new socket for the new connection
+        ReldatSocket conn = new ReldatSocket(0, windowSize, engine, maxSegmentSize);
+        conn.remoteSocketAddress = syn.getSocketAddress();
+        conn.sendWindowSize = Math.max(1, syn.getWindowSize());
+        conn.expectedSeqNum = calcAck(syn);
+
+        // Pick the checksum from the ones offered in the SYN
+        ConnectionOptions offered = ConnectionOptions.fromPacket(syn);
+        pool.release(syn);
+        ConnectionOptions chosen = new ConnectionOptions();
+        conn.checksums = checksums;
+        conn.checksum = ConnectionOptions.negotiate(offered.checksums, checksums);
+        chosen.checksums.add(conn.checksum);
+        conn.sackEnabled = sackEnabled;
+        conn.sack = offered.sack && sackEnabled;
+        chosen.sack = conn.sack;
+        conn.timestampsEnabled = timestampsEnabled;
+        conn.timestamps = offered.timestamps && timestampsEnabled && syn.hasTimestamps();
+        conn.timestampRecent = syn.getTimestamp();
+        conn.setCongestionAlgorithm(congestionAlgorithm);
+        conn.duplicateAckThreshold = duplicateAckThreshold;
+        conn.keepAliveInterval = keepAliveInterval;
+        conn.keepAliveThreshold = keepAliveThreshold;
+        conn.mtuProbing = mtuProbing;
+        conn.startSegmentSizing(offered.mss);
+        chosen.mss = maxSegmentSize;
+        chosen.timestamps = conn.timestamps;
+        conn.streamsEnabled = streamsEnabled;
+        conn.streams = offered.streams && streamsEnabled;
+        conn.nextStreamId = 2;
+        chosen.streams = conn.streams;
+
+        // Create SYNACK packet
+        ReldatPacket synack = new ReldatPacket(chosen.toBytes(), windowSize, conn.seqNum);
+        synack.setSYN();
+        synack.setACK(conn.expectedSeqNum);
+        conn.updateSeqNum(synack.getSize());
+
+        conn.synack = synack;
+        conn.timeOfLastReceive = System.nanoTime();
+        conn.handshakeStart = conn.timeOfLastReceive;
+        try {
+            conn.sendHandshake(conn.timeOfLastReceive);
+        } catch (IOException e) {
+            conn.closeTransport();
+            throw e;
+        }
+        return conn;
+    }
+
+    /**
+     * Connects to destination address:port
+     * <p>
+     * This operation blocks until the connection is established.
+     *
+     * @param address the address to connect to
+     * @throws ConnectException when connection fails
+     */
+    public void connect(SocketAddress address) throws ConnectException {
+        // Offer the supported checksum algorithms
+        ConnectionOptions options = new ConnectionOptions();
+        options.checksums.addAll(checksums);
+        options.sack = sackEnabled;
+        options.timestamps = timestampsEnabled;
+        options.mss = maxSegmentSize;
+        options.streams = streamsEnabled;
+
+        ReldatPacket syn = new ReldatPacket(options.toBytes(), windowSize, seqNum);
+        syn.setSYN();
+        updateSeqNum(syn.getSize());
+
+        try {
+            // Send SYN and attempt to receive SYNACK over CONNECT_TIMEOUT,
+            // backing off after each attempt
+            ReldatPacket synack = null;
+            long start = System.nanoTime(), sentAt = start;
+            int attempts = 0;
+            while (synack == null && (System.nanoTime() - start) / 1000000 < CONNECT_TIMEOUT) {
+                if (attempts > 0) rtt.backoff();
+                sentAt = System.nanoTime();
+                if (timestampsEnabled) syn.setTimestamps(micros(sentAt), 0);
+                sendPacket(syn, address);
+                attempts++;
+
+                long deadline = sentAt + rtt.getRto();
+                long remaining;
+                while (synack == null && (remaining = (deadline - System.nanoTime()) / 1000000) > 0) {
+                    synack = readPacket((int) remaining);
+                    if (synack != null && (!synack.getSYN() || synack.getAckNum() != calcAck(syn))) {
+                        pool.release(synack);
+                        synack = null;
+                    }
+                }
+            }
+
+            if (synack == null) throw new IOException("timed out on receiving SYNACK");
+
+            // Get the address of the newly opened socket on the server
+            timeOfLastReceive = System.nanoTime();
+            remoteSocketAddress = synack.getSocketAddress();
+            sendWindowSize = Math.max(1, synack.getWindowSize());
+            expectedSeqNum = calcAck(synack);
+
+            // Use the options chosen by the server
+            ConnectionOptions chosen = ConnectionOptions.fromPacket(synack);
+            checksum = chosen.checksums.isEmpty() ? ChecksumAlgorithm.DEFAULT : chosen.checksums.get(0);
+            sack = chosen.sack && sackEnabled;
+            timestamps = chosen.timestamps && timestampsEnabled && synack.hasTimestamps();
+            timestampRecent = synack.getTimestamp();
+            streams = chosen.streams && streamsEnabled;
+            nextStreamId = 1;
+            startSegmentSizing(chosen.mss);
+            sampleRtt(synack, sentAt, attempts > 1, System.nanoTime());
+            pool.release(synack);
+
+            sendAck();
+            isConnected = true;
+        } catch (IOException e) {
+            throw new ConnectException("Failed to establish connection: " +
+                    e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    /**
+     * Check if the socket is an accepted connection still waiting for the
+     * final ACK of the handshake.
+     *
+     * @return true while the handshake is in progress
+     */
+    boolean isHandshaking() {
+        return synack != null;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return remoteSocketAddress;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        // The transport is not set yet while the parent constructor runs
+        if (transport == null) return super.getLocalSocketAddress();
+        return transport.getLocalSocketAddress();
+    }
+
+    @Override
+    public int getLocalPort() {
+        SocketAddress address = getLocalSocketAddress();
+        return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getPort() : -1;
+    }
+
+    /**
+     * Get the engine this socket sends and receives datagrams with.
+     *
+     * @return the engine
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Get the channel of a socket using the CHANNEL engine.
+     *
+     * @return the channel or null for the BLOCKING engine
+     */
+    DatagramChannel getDatagramChannel() {
+        return transport instanceof ChannelTransport ? ((ChannelTransport) transport).getChannel() : null;
+    }
+
+    /**
+     * Send data through the established connection to the
+     * remote SocketAddress
+     *
+     * @param data the data to send
+     * @throws IOException if the any packet fails to send
+     * @throws DisconnectException if the connection gets disconnected during send
+     */
+    public void send(byte[] data) throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            writeFully(ByteBuffer.wrap(data));
+            awaitAcks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Receive bytes from the connection
+     *
+     * @param length the length of the data to receive
+     * @return an array of bytes containing the received data
+     * @throws DisconnectException if the connection is disconnected
+     */
+    public byte[] receive(int length) throws DisconnectException {
+        lock.lock();
+        try {
+            // The buffer
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+
+            // Set time of last receive so connection doesn't instantly close if no
+            // data is received in first iteration
+            timeOfLastReceive = System.nanoTime();
+
+            read(buffer);
+            while (buffer.hasRemaining()) {
+                try {
+                    poll();
+                } catch (IOException e) {
+                }
+                read(buffer);
+                disconnectIfIdle();
+            }
+            flushAck();
+
+            return buffer.array();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send the rest of a file, from its position to its end.
+     * <p>
+     * The file is mapped a region at a time and each packet is encoded from
+     * the mapping into its send window slot. With the CHANNEL engine those
+     * are direct buffers, so the data is never copied onto the heap; the
+     * BLOCKING engine's are heap arrays. This blocks until all of it has
+     * been acknowledged, and moves the file's position to its end.
+     *
+     * @param file the file to send
+     * @return the number of bytes sent
+     * @throws IOException if the file cannot be mapped or a packet fails to send
+     * @throws DisconnectException if the connection is disconnected
+     */
+    public long sendFile(FileChannel file) throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            long sent = sendFile(file, Long.MAX_VALUE);
+            awaitAcks();
+            return sent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send part of a file, from its position on, like
+     * {@link #sendFile(FileChannel)}, but only block until all of it has
+     * been put in packets. So further data can follow it straight away.
+     *
+     * @param file  the file to send
+     * @param count the most bytes to send
+     * @return the number of bytes sent, fewer than count if the file ends first
+     * @throws IOException if the file cannot be mapped or a packet fails to send
+     * @throws DisconnectException if the connection is disconnected
+     */
+    public long sendFile(FileChannel file, long count) throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            long start = file.position(), end = start + Math.max(0, Math.min(count, file.size() - start));
+            for (long position = start; position < end; ) {
+                MappedByteBuffer region = file.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_SIZE, end - position));
+                writeFully(region);
+                position += region.capacity();
+                file.position(position);
+            }
+            return end - start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Receive data into a file, from its position on.
+     * <p>
+     * The file is mapped a region at a time and the data received in order
+     * is copied straight from the receive buffers into the mapping. The file
+     * must be open for reading and writing. This blocks until count bytes
+     * have been received or the connection is closed, and moves the file's
+     * position past the data.
+     *
+     * @param file  the file to write to
+     * @param count the number of bytes to receive
+     * @return the number of bytes received
+     * @throws IOException if the file cannot be mapped
+     * @throws DisconnectException if the connection times out
+     */
+    public long receiveToFile(FileChannel file, long count) throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            long start = file.position(), size = file.size(), received = 0;
+            boolean open = true;
+            while (open && received < count) {
+                MappedByteBuffer region = file.map(FileChannel.MapMode.READ_WRITE, start + received,
+                        Math.min(MAP_SIZE, count - received));
+                while (open && region.hasRemaining()) open = readBlocking(region) != -1;
+                received += region.position();
+            }
+
+            // Mapping grew the file to the full count
+            if (received < count) file.truncate(Math.max(size, start + received));
+            file.position(start + received);
+            return received;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a stream that reads the data received on this connection.
+     * <p>
+     * Reads block until some data has arrived, and the stream ends once the
+     * remote socket closed the connection and everything it sent has been
+     * read. Like the socket, the stream is not thread safe.
+     *
+     * @return the input stream
+     */
+    public InputStream getInputStream() {
+        return new ReldatInputStream(this);
+    }
+
+    /**
+     * Get a stream that sends data on this connection.
+     * <p>
+     * Writes block until the data has been put in packets, so at most a
+     * send window of it is held in memory. Every write sends at least one
+     * packet, so small writes should be buffered. Flushing blocks until
+     * everything written has been acknowledged.
+     *
+     * @return the output stream
+     */
+    public OutputStream getOutputStream() {
+        return new ReldatOutputStream(this);
+    }
+
+    /**
+     * Get a blocking channel that reads and writes on this connection, like
+     * {@link #getInputStream()} and {@link #getOutputStream()}.
+     *
+     * @return the channel
+     */
+    public ByteChannel getByteChannel() {
+        return new ReldatByteChannel(this);
+    }
+
+    /**
+     * Block until some data has been read.
+     *
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or -1 once the connection is closed
+     * and everything received on it has been read
+     * @throws DisconnectException if the connection times out
+     */
+    int readBlocking(ByteBuffer dst) throws DisconnectException {
+        lock.lock();
+        try {
+            if (!dst.hasRemaining()) return 0;
+
+            // Set time of last receive so connection doesn't instantly close if no
+            // data is received in first iteration
+            timeOfLastReceive = System.nanoTime();
+
+            int read;
+            while ((read = read(dst)) == 0) {
+                if (!isConnected) return -1;
+                try {
+                    poll();
+                } catch (IOException e) {
+                } catch (DisconnectException e) {
+                    // The remote socket closed, what it sent before is still readable
+                    continue;
+                }
+                // Another thread may have handled the FIN, which is the end too
+                if (isConnected) disconnectIfIdle();
+            }
+            flushAck();
+            return read;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until all of the data has been put in packets.
+     * <p>
+     * The data may not have been acknowledged yet, but the buffer can be
+     * reused once this returns.
+     *
+     * @param data the data to send
+     * @return the number of bytes sent
+     * @throws IOException if a packet fails to send
+     * @throws DisconnectException if the connection is disconnected
+     */
+    int writeFully(ByteBuffer data) throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            // Set time of last receive so connection doesn't instantly close if no
+            // data is received in first iteration
+            timeOfLastReceive = System.nanoTime();
+
+            int length = data.remaining();
+            write(data);
+            while (!outbound.isEmpty()) {
+                poll();
+                disconnectIfIdle();
+            }
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until everything sent has been acknowledged.
+     *
+     * @throws IOException if a packet fails to send
+     * @throws DisconnectException if the connection is disconnected
+     */
+    void awaitAcks() throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            timeOfLastReceive = System.nanoTime();
+
+            while (!outbound.isEmpty() || !ready.isEmpty() || !sendWindow.isEmpty()) {
+                poll();
+                disconnectIfIdle();
+            }
+            flushAck();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check that the remote socket is still there: send it a probe without
+     * data and block until it is acknowledged. The probe is resent every
+     * retransmission timeout.
+     * <p>
+     * Probes take up no sequence numbers, so this can be done at any time,
+     * and the remote socket's idle timer restarts when it gets one.
+     *
+     * @param timeout how long to wait for the ACK in milliseconds
+     * @return true if the probe was acknowledged, false if it was not in
+     * time or the connection is closed
+     */
+    public boolean ping(int timeout) {
+        lock.lock();
+        try {
+            long start = System.nanoTime(), resendAt = start;
+            int acks = probeAcks;
+            while (probeAcks == acks) {
+                long now = System.nanoTime();
+                long remaining = timeout - (now - start) / 1000000;
+                if (!isConnected || remaining <= 0) return false;
+
+                if (now - resendAt >= 0) {
+                    ReldatPacket probe = new ReldatPacket(advertisedWindow(), seqNum);
+                    probe.setProbe();
+                    sendPacket(probe, remoteSocketAddress);
+                    resendAt = now + rtt.getRto();
+                }
+                poll(Math.min(remaining, (resendAt - now) / 1000000));
+            }
+            return true;
+        } catch (IOException | DisconnectException e) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Open a new stream on the connection.
+     * <p>
+     * Nothing is sent until data is written to it: the remote socket learns
+     * about the stream from its first packet.
+     *
+     * @return the stream
+     * @throws IllegalStateException if streams were not negotiated
+     */
+    public ReldatStream openStream() {
+        lock.lock();
+        try {
+            if (!streams) throw new IllegalStateException("streams were not negotiated");
+            ReldatStream stream = new ReldatStream(this, nextStreamId);
+            nextStreamId += 2;
+            streamsById.put(stream.getId(), stream);
+            return stream;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until the remote socket opens a stream.
+     *
+     * @return the stream, or null once the connection is closed
+     * @throws DisconnectException if the connection times out
+     */
+    public ReldatStream acceptStream() throws DisconnectException {
+        lock.lock();
+        try {
+            timeOfLastReceive = System.nanoTime();
+
+            while (acceptable.isEmpty()) {
+                if (!isConnected) return null;
+                try {
+                    poll();
+                } catch (IOException e) {
+                } catch (DisconnectException e) {
+                    continue;
+                }
+                if (isConnected) disconnectIfIdle();
+            }
+            flushAck();
+            return acceptable.remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until some data has been read from a stream.
+     *
+     * @param stream the stream
+     * @param dst    the buffer to read into
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws DisconnectException if the connection times out
+     */
+    int readStream(ReldatStream stream, ByteBuffer dst) throws DisconnectException {
+        lock.lock();
+        try {
+            if (!dst.hasRemaining()) return 0;
+            timeOfLastReceive = System.nanoTime();
+
+            int read;
+            while ((read = drain(stream, dst)) == 0) {
+                if (stream.closed || stream.isAtEnd() || !isConnected) return -1;
+                try {
+                    poll();
+                } catch (IOException e) {
+                } catch (DisconnectException e) {
+                    continue;
+                }
+                if (isConnected) disconnectIfIdle();
+            }
+            flushAck();
+            return read;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until all of the data has been put in packets on a stream.
+     *
+     * @param stream the stream
+     * @param data   the data to send
+     * @return the number of bytes sent
+     * @throws IOException if a packet fails to send
+     * @throws DisconnectException if the connection is disconnected
+     */
+    int writeStream(ReldatStream stream, ByteBuffer data) throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            timeOfLastReceive = System.nanoTime();
+
+            int length = data.remaining();
+            if (length > 0) queue(stream, data);
+            pump(System.nanoTime());
+            while (!stream.outbound.isEmpty()) {
+                poll();
+                disconnectIfIdle();
+            }
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until no more than limit bytes queued on a stream are left to
+     * put in packets.
+     *
+     * @param stream the stream
+     * @param limit  the number of bytes
+     * @throws IOException if a packet fails to send
+     * @throws DisconnectException if the connection is disconnected
+     */
+    void awaitStreamQueued(ReldatStream stream, int limit) throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            timeOfLastReceive = System.nanoTime();
+
+            while (stream.queuedBytes() > limit) {
+                poll();
+                disconnectIfIdle();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue data on a stream without blocking.
+     *
+     * @param stream the stream
+     * @param data   the data to send
+     * @throws IOException if a packet fails to send
+     */
+    void queueStream(ReldatStream stream, ByteBuffer data) throws IOException {
+        lock.lock();
+        try {
+            if (data.hasRemaining()) queue(stream, data);
+            pump(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End a stream and block until everything sent on it has been
+     * acknowledged.
+     *
+     * @param stream the stream
+     * @throws IOException if a packet fails to send
+     * @throws DisconnectException if the connection is disconnected
+     */
+    void shutdownStream(ReldatStream stream) throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            timeOfLastReceive = System.nanoTime();
+
+            if (!stream.outputShutdown) {
+                // The last packet queued carries the end, or an empty one if
+                // everything has been sent already
+                stream.outputShutdown = true;
+                if (stream.outbound.isEmpty()) queue(stream, ByteBuffer.allocate(0));
+                pump(System.nanoTime());
+            }
+            while (!stream.isOutputComplete()) {
+                poll();
+                disconnectIfIdle();
+            }
+            flushAck();
+            retireIfDone(stream);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End a stream if it has not been, and drop the data received on it.
+     *
+     * @param stream the stream
+     */
+    void closeStream(ReldatStream stream) {
+        lock.lock();
+        try {
+            if (stream.closed) return;
+            if (isConnected) {
+                try {
+                    shutdownStream(stream);
+                } catch (IOException | DisconnectException e) {
+                }
+            }
+            stream.closed = true;
+            streamHeld -= stream.held();
+            stream.releaseAll(pool);
+            retireIfDone(stream);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read the data a stream has received in order without blocking.
+     */
+    private int drain(ReldatStream stream, ByteBuffer dst) {
+        int held = stream.held();
+        int read = stream.drain(dst, pool);
+        streamHeld -= held - stream.held();
+        updateWindow();
+        return read;
+    }
+
+    /**
+     * Queue data on a stream, giving the stream a turn to send if it did
+     * not have one.
+     */
+    private void queue(ReldatStream stream, ByteBuffer data) {
+        if (stream.outbound.isEmpty()) ready.add(stream);
+        stream.outbound.add(data);
+    }
+
+    /**
+     * Forget a stream once it is closed and nothing more is sent or
+     * received on it.
+     */
+    private void retireIfDone(ReldatStream stream) {
+        if (stream.closed && stream.isInputComplete() && stream.isOutputComplete()) {
+            streamsById.remove(stream.getId());
+        }
+    }
+
+    /**
+     * Queue data to be sent without blocking.
+     * <p>
+     * As much of the data as the send window allows is sent right away, the
+     * rest as ACKs arrive. The buffer belongs to the socket until all of
+     * its data has been sent, see {@link #getPendingBytes()}.
+     *
+     * @param data the data to send
+     * @throws IOException if a packet fails to send
+     */
+    public void write(ByteBuffer data) throws IOException {
+        lock.lock();
+        try {
+            if (data.hasRemaining()) outbound.add(data);
+            pump(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read the data that has been received in order without blocking.
+     *
+     * @param dst the buffer to read into
+     * @return the number of bytes read
+     */
+    public int read(ByteBuffer dst) {
+        lock.lock();
+        try {
+            int read = 0;
+            while (dst.hasRemaining() && !readable.isEmpty()) {
+                ReldatPacket packet = readable.peek();
+                int copied = packet.copyData(readOffset, dst);
+                read += copied;
+                readOffset += copied;
+
+                if (readOffset == packet.getSize()) {
+                    readable.remove();
+                    pool.release(packet);
+                    readOffset = 0;
+                }
+            }
+
+            updateWindow();
+            return read;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tell the remote socket once the window opens back up after data was
+     * read, otherwise it only finds out on its next retransmission.
+     */
+    private void updateWindow() {
+        if (isConnected && lastAdvertisedWindow <= windowSize / 2
+                && advertisedWindow() > windowSize / 2) {
+            try {
+                sendAck();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes that can be read without blocking.
+     *
+     * @return the number of bytes
+     */
+    public int available() {
+        lock.lock();
+        try {
+            int available = -readOffset;
+            for (ReldatPacket packet : readable) available += packet.getSize();
+            return available;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until no more than limit bytes written are left to send or
+     * acknowledge. With {@link #write(ByteBuffer)} this bounds the memory
+     * held by data queued faster than the remote socket reads it.
+     *
+     * @param limit the number of bytes
+     * @throws IOException if a packet fails to send
+     * @throws DisconnectException if the connection is disconnected
+     */
+    public void awaitPendingBytes(int limit) throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            timeOfLastReceive = System.nanoTime();
+
+            while (getPendingBytes() > limit) {
+                poll();
+                disconnectIfIdle();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of bytes written that have not been acknowledged yet.
+     *
+     * @return the number of bytes
+     */
+    public int getPendingBytes() {
+        lock.lock();
+        try {
+            int pending = 0;
+            for (ByteBuffer data : outbound) pending += data.remaining();
+            for (ReldatStream stream : ready) {
+                for (ByteBuffer data : stream.outbound) pending += data.remaining();
+            }
+            for (int i = 0; i < sendWindow.size(); ++i) pending += sendWindow.get(i).size;
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closeLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Exchange FIN and FINACK and close the socket, with the lock held.
+     */
+    private void closeLocked() {
+        if (isClosed()) return;
+
+        // Let the data still in flight arrive before the FIN, unless the
+        // connection is being closed because it went idle
+        try {
+            while (isConnected && (!outbound.isEmpty() || !ready.isEmpty() || !sendWindow.isEmpty())
+                    && !isIdle(System.nanoTime())) {
+                poll();
+            }
+        } catch (IOException | DisconnectException e) {
+        }
+
+        // Take over receiving from any other thread for the FIN exchange
+        closing = true;
+        while (polling) progress.awaitUninterruptibly();
+
+        if (isConnected) {
+            // Create a FIN packet
+            ReldatPacket fin = new ReldatPacket(advertisedWindow(), seqNum);
+            fin.setFIN();
+            updateSeqNum(0);
+
+            // Attempt to send FIN and receive FINACK over CONNECT_TIMEOUT period,
+            // backing off after each attempt
+            long start = System.nanoTime();
+            boolean done = false;
+            while (!done && (System.nanoTime() - start) / 1000000 < CONNECT_TIMEOUT) {
+                try {
+                    sendPacket(fin, remoteSocketAddress);
+
+                    long deadline = System.nanoTime() + rtt.getRto();
+                    long remaining;
+                    while (!done && (remaining = (deadline - System.nanoTime()) / 1000000) > 0) {
+                        ReldatPacket packet = readPacket((int) remaining);
+                        if (packet == null) break;
+
+                        boolean finack = packet.getFIN() && calcAck(fin) <= packet.getAckNum();
+                        boolean peerFin = packet.getFIN() && !packet.getACK();
+                        if (peerFin) sendFinAck(packet);
+                        pool.release(packet);
+
+                        // Stop once the FIN is acknowledged or the other side is closing too
+                        done = finack || peerFin;
+                    }
+                } catch (IOException e) {
+                }
+                rtt.backoff();
+            }
+        }
+
+        // Close if FINACK is received or if timeout
+        closeTransport();
+        releaseAll(readable);
+        readOffset = 0;
+        releaseStreams();
+        closing = false;
+        progress.signalAll();
+    }
+
+    /**
+     * Close the connection without waiting for the FINACK.
+     * <p>
+     * A single FIN is sent if the socket is connected. This is used where
+     * blocking for the FIN exchange is not an option, e.g. on an event loop.
+     */
+    void abort() {
+        if (isConnected) {
+            ReldatPacket fin = new ReldatPacket(advertisedWindow(), seqNum);
+            fin.setFIN();
+            updateSeqNum(0);
+            try {
+                sendPacket(fin, remoteSocketAddress);
+            } catch (IOException e) {
+            }
+        }
+        closeTransport();
+        releaseAll(readable);
+        readOffset = 0;
+        releaseStreams();
+    }
+
+    /**
+     * Wait for the next packet or timer on the calling thread and handle it.
+     * <p>
+     * Only one thread waits for datagrams at a time, without holding the
+     * lock. Any others wait for it to handle a packet, running the timers
+     * themselves in the meantime.
+     *
+     * @throws IOException if a packet fails to send
+     * @throws DisconnectException if the connection gets disconnected
+     */
+    private void poll() throws IOException, DisconnectException {
+        poll(TIMEOUT);
+    }
+
+    /**
+     * Like {@link #poll()}, waiting no longer than maxWait.
+     *
+     * @param maxWait the longest to wait in milliseconds
+     * @throws IOException if a packet fails to send
+     * @throws DisconnectException if the connection gets disconnected
+     */
+    private void poll(long maxWait) throws IOException, DisconnectException {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            long timeout = (onTimer(now) - now) / 1000000;
+            if (isClosed()) return;
+            int wait = (int) Math.max(1, Math.min(maxWait, timeout));
+
+            if (polling || closing) {
+                try {
+                    progress.await(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // Like the transports, blocking calls are not interruptible
+                }
+                return;
+            }
+
+            polling = true;
+            try {
+                ReldatPacket packet = readPacket(wait);
+                if (packet != null) onPacket(packet);
+            } finally {
+                polling = false;
+                progress.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send a delayed ACK right away.
+     * <p>
+     * The blocking calls do this before returning, since nothing drives
+     * the delayed ACK timer until the next one.
+     */
+    private void flushAck() {
+        if (!ackPending || !isConnected) return;
+        try {
+            sendAck();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Close the connection if the remote socket is gone, see
+     * {@link #isIdle(long)}. This must be called with the lock held.
+     *
+     * @throws DisconnectException if the connection is closed
+     */
+    private void disconnectIfIdle() throws DisconnectException {
+        if (!isConnected) throw new DisconnectException();
+
+        // Disconnect after a while if nothing is received.
+        if (isIdle(System.nanoTime())) {
+            if (keepAliveInterval > 0) {
+                System.err.printf("No answer to %d keepalive probes, disconnecting...\n", keepAlivesSent);
+            } else {
+                System.err.printf("No data received in %d seconds, disconnecting...\n", CONNECT_TIMEOUT / 1000);
+            }
+
+            // The remote socket would not answer a FIN either
+            abort();
+            throw new DisconnectException();
+        }
+    }
+
+    /**
+     * Check if the remote socket is taken to be gone: its last
+     * keepAliveThreshold keepalive probes went unanswered for another
+     * interval, or without keepalives nothing has been received for
+     * CONNECT_TIMEOUT.
+     *
+     * @param now the current time in nanoseconds
+     * @return true if the connection is idle
+     */
+    boolean isIdle(long now) {
+        if (keepAliveInterval == 0) return (now - timeOfLastReceive) / 1000000 > CONNECT_TIMEOUT;
+        return keepAlivesSent >= keepAliveThreshold
+                && (now - timeOfLastReceive) / 1000000 >= (long) keepAliveInterval * (keepAliveThreshold + 1);
+    }
+
+    /**
+     * Handle the datagrams already received and the timers of a connection
+     * no thread is blocked on, without blocking, so it answers and sends
+     * keepalives. Nothing is done while another thread is polling.
+     * <p>
+     * The connection is closed without waiting for the FINACK once the
+     * remote socket is gone.
+     */
+    void keepAlive() {
+        lock.lock();
+        try {
+            if (polling || closing || !isConnected) return;
+
+            onTimer(System.nanoTime());
+            polling = true;
+            try {
+                ReldatPacket packet;
+                while (isConnected && (packet = readPacket(-1)) != null) onPacket(packet);
+            } finally {
+                polling = false;
+                progress.signalAll();
+            }
+            if (isIdle(System.nanoTime())) abort();
+        } catch (IOException e) {
+            abort();
+        } catch (DisconnectException e) {
+            // The remote socket closed the connection
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handle a packet received by this socket.
+     * <p>
+     * The socket owns the packet afterwards.
+     *
+     * @param packet the packet
+     * @throws IOException if a packet fails to send in response
+     * @throws DisconnectException if the remote socket closed the connection
+     */
+    void onPacket(ReldatPacket packet) throws IOException, DisconnectException {
+        long now = System.nanoTime();
+        timeOfLastReceive = now;
+        keepAlivesSent = 0;
+
+        // Set the sendWindowSize to the other side's advertised receive window
+        sendWindowSize = Math.max(1, packet.getWindowSize());
+
+        // Echo the timestamp of the packets received in order, so the
+        // remote socket's samples include any delay caused by losses. A
+        // delayed ACK echoes the first packet it acknowledges.
+        if (timestamps && packet.hasTimestamps() && packet.getSeqNum() == expectedSeqNum && !ackPending) {
+            timestampRecent = packet.getTimestamp();
+        }
+
+        if (packet.isProbe()) {
+            if (packet.getACK()) {
+                probeAcks++;
+                onProbeAck(packet.getAckNum());
+            } else {
+                sendProbeAck(packet);
+            }
+            pool.release(packet);
+            return;
+        }
+
+        // Handle disconnect logic
+        if (packet.getFIN() && !packet.getACK()) {
+            sendFinAck(packet);
+            pool.release(packet);
+
+            // Mark socket closed and close underlying UDP socket
+            closeTransport();
+            throw new DisconnectException();
+        }
+
+        if (synack != null) {
+            // Waiting for the final ACK of the handshake
+            if (!packet.getACK() || seqBefore(packet.getAckNum(), calcAck(synack))) {
+                pool.release(packet);
+                return;
+            }
+            sampleRtt(packet, handshakeSentAt, handshakeAttempts > 1, now);
+            synack = null;
+            isConnected = true;
+        } else if (packet.getSYN()) {
+            // Resent SYNACK, the final ACK of the handshake was lost
+            if (packet.getACK()) sendAck();
+            pool.release(packet);
+            return;
+        }
+
+        if (packet.getACK()) onAck(packet, now);
+
+        if (packet.getSize() > 0 || packet.isStreamFin()) {
+            onData(packet, now);
+        } else {
+            pool.release(packet);
+        }
+    }
+
+    /**
+     * Remove the packets acknowledged by a cumulative ACK from the send
+     * window, and fill the window back up.
+     * <p>
+     * While recovering from a retransmission, an ACK that does not cover
+     * everything sent before it means the next packet was lost as well, so
+     * it is resent right away. With SACK, so are the other gaps reported.
+     * <p>
+     * An ACK that repeats the last one while packets are in flight means
+     * the receiver got a packet out of order. After duplicateAckThreshold
+     * of them the oldest packet is resent without waiting for its timeout.
+     */
+    private void onAck(ReldatPacket ack, long now) throws IOException {
+        int ackNum = ack.getAckNum();
+        boolean limited = sendWindow.size() >= congestion.getWindow();
+        Segment acked = null;
+        int count = 0;
+        while (!sendWindow.isEmpty() && !seqBefore(ackNum, sendWindow.peek().end)) {
+            acked = sendWindow.remove();
+            count++;
+            if (acked.stream != null) {
+                acked.stream.inFlight--;
+                retireIfDone(acked.stream);
+            }
+        }
+        if (acked != null) {
+            sampleRtt(ack, acked.sentAt, acked.transmissions > 1, now);
+
+            // Only grow the congestion window while it is what limits
+            // sending, and not while losses are being repaired
+            if (limited && !recovering) congestion.onAck(count, now, rtt.getSrtt());
+        }
+
+        // Only an unbroken run of duplicates counts towards a fast
+        // retransmit: any other ACK starts the count over
+        if (acked == null && isDuplicateAck(ack)) {
+            if (++duplicateAcks == duplicateAckThreshold && !recovering) {
+                // Fast retransmit
+                congestion.onCongestion(now);
+                recovering = true;
+                recoveryStart = now;
+                recoveryPoint = seqNum;
+                resend(sendWindow.peek(), now);
+            }
+        } else {
+            duplicateAcks = 0;
+            if (acked == null && !sendWindow.isEmpty() && ackNum == lastAckNum
+                    && lastAckWindow <= 1 && ack.getWindowSize() > 1) {
+                // The remote socket was full and freed up room: the packet
+                // sent into its last slot was most likely dropped, so resend
+                // it rather than waiting for its timeout
+                resend(sendWindow.peek(), now);
+            }
+        }
+        lastAckNum = ackNum;
+        lastAckWindow = ack.getWindowSize();
+
+        // Mark the packets the remote socket already buffered
+        if (sack) {
+            for (int i = 0; i < ack.getSackBlockCount(); ++i) {
+                int start = ack.getSackStart(i), end = ack.getSackEnd(i);
+                for (int j = 0; j < sendWindow.size(); ++j) {
+                    Segment segment = sendWindow.get(j);
+                    if (!seqBefore(segment.seqNum, start) && seqBefore(segment.seqNum, end)) segment.sacked = true;
+                }
+            }
+        }
+
+        if (recovering && !sendWindow.isEmpty() && seqBefore(ackNum, recoveryPoint)) {
+            Segment first = sendWindow.peek();
+            if (acked != null && first.sentAt - recoveryStart < 0) resend(first, now);
+            if (sack) resendHoles(now);
+        } else {
+            recovering = false;
+        }
+
+        pump(now);
+    }
+
+    /**
+     * Check if an ACK repeats the last one without acknowledging anything,
+     * while there are packets in flight. ACKs that carry data or open the
+     * window are not duplicates. The window can shrink, since packets of a
+     * stream received out of order already take up room.
      */
-    private int lastReceived;
+    private boolean isDuplicateAck(ReldatPacket ack) {
+        return !sendWindow.isEmpty()
+                && ack.getSize() == 0 && !ack.getSYN() && !ack.getFIN() && !ack.isStreamFin()
+                && ack.getAckNum() == lastAckNum
+                && ack.getWindowSize() <= lastAckWindow;
+    }
 
     /**
-     * The time of the last received packet in nanoseconds.
+     * Put a data packet in the receive window, move the packets that are now
+     * in order to the readable data and ACK them.
+     * <p>
+     * Packets of a stream go to the stream right away, in any order: only
+     * their place is kept in the receive window until the gap before them
+     * is filled.
+     * <p>
+     * Packets received in order are acknowledged together, every
+     * ACK_EVERY packets or after ACK_DELAY, unless an outgoing data packet
+     * carries the ACK first. Anything else is acknowledged right away.
      */
-    private long timeOfLastReceive;
+    private void onData(ReldatPacket packet, long now) throws IOException {
+        // Drop anything already received, and anything there is no room for
+        // Packets whose data went to a stream only count once, where the
+        // stream holds them
+        boolean old = seqBefore(packet.getSeqNum(), expectedSeqNum);
+        boolean full = readable.size() + streamHeld + receiveWindow.held() >= windowSize;
+        boolean gap = !receiveWindow.isEmpty();
+        boolean added;
+        if (old || full) {
+            added = false;
+        } else if (packet.getSeqNum() == expectedSeqNum) {
+            // In order, so it goes straight to the readable data
+            receiveWindow.fit(packet);
+            expectedSeqNum = calcAck(packet);
+            added = true;
+        } else if (receiveWindow.size() >= windowSize) {
+            added = false;
+        } else if (packet.getStreamId() == 0) {
+            // Kept until the gap before it is filled
+            added = receiveWindow.add(packet);
+            if (added) packet = null;
+        } else {
+            added = receiveWindow.add(packet.getSeqNum(), calcAck(packet), null);
+        }
+        if (!added) {
+            pool.release(packet);
+        } else if (packet != null) {
+            deliver(packet);
+        }
+
+        int end;
+        while ((end = receiveWindow.remove(expectedSeqNum, readable)) != -1) expectedSeqNum = end;
+
+        if (!added || gap || !receiveWindow.isEmpty()) {
+            // Duplicates, drops and packets out of order or filling a gap
+            // tell the remote socket about losses, so ACK them immediately
+            sendAck();
+        } else if (++unackedPackets >= ACK_EVERY) {
+            sendAck();
+        } else if (!ackPending) {
+            ackPending = true;
+            ackDeadline = now + ACK_DELAY * 1000000L;
+        }
+    }
 
     /**
-     * The socket address this socket is connected to.
+     * Hand a packet received in the connection's window to the stream it
+     * belongs to, opening the stream if the remote socket just did.
      */
-    private SocketAddress remoteSocketAddress;
-    private boolean isConnected;
+    private void deliver(ReldatPacket packet) {
+        int id = packet.getStreamId();
+        if (id == 0) {
+            readable.add(packet);
+            return;
+        }
 
+        ReldatStream stream = streamsById.get(id);
+        if (stream == null && streams && id % 2 != nextStreamId % 2) {
+            stream = new ReldatStream(this, id);
+            streamsById.put(id, stream);
+            acceptable.add(stream);
+        }
+        if (stream == null) {
+            // Closed and forgotten, or never negotiated
+            pool.release(packet);
+            return;
+        }
+        streamHeld += stream.onPacket(packet, pool);
+        retireIfDone(stream);
+    }
 
     /**
-     * Construct a ReldatSocket bound on a specific port.
+     * Handle the timers of the connection: handshake and data retransmission.
      *
-     * @param port       the port to bind on
-     * @param windowSize the receiving window size
-     * @throws IOException exception inherited from parent DatagramSocket
+     * @param now the current time in nanoseconds
+     * @return when onTimer should be called next in nanoseconds
+     * @throws IOException if a packet fails to send
      */
-    public ReldatSocket(int port, int windowSize) throws IOException {
-        super(port);
-        this.windowSize = windowSize;
+    long onTimer(long now) throws IOException {
+        if (synack != null) {
+            if (now - handshakeDeadline >= 0) {
+                if ((now - handshakeStart) / 1000000 >= CONNECT_TIMEOUT) {
+                    // Give up on the handshake
+                    synack = null;
+                    closeTransport();
+                    return now + TIMEOUT * 1000000L;
+                }
+                rtt.backoff();
+                sendHandshake(now);
+            }
+            return handshakeDeadline;
+        }
 
-        // this.seqNum = new Random().nextInt() & Integer.MAX_VALUE;
-        seqNum = 0;
+        if (ackPending && now - ackDeadline >= 0) sendAck();
+        if (probePending && now - probeDeadline >= 0) onProbeLost();
+        long keepAlive = onKeepAliveTimer(now);
 
-        // Set receive buffer size
-        this.setReceiveBufferSize(windowSize * MSS * 2);
+        long next = onRetransmitTimer(now);
+        if (ackPending && ackDeadline - next < 0) next = ackDeadline;
+        if (probePending && probeDeadline - next < 0) next = probeDeadline;
+        if (keepAlive - next < 0) next = keepAlive;
+        return next;
     }
 
     /**
-     * Construct a ReldatSocket bound on a random port.
+     * Send a keepalive probe once nothing has been received for a
+     * keepalive interval since the last one, up to keepAliveThreshold of
+     * them.
      *
-     * @param windowSize the receiving window size
-     * @throws IOException exception inherited from parent DatagramSocket
+     * @param now the current time in nanoseconds
+     * @return when the next probe is due, or the remote socket counts as
+     * gone, in nanoseconds
+     * @throws IOException if the probe fails to send
      */
-    public ReldatSocket(int windowSize) throws IOException {
-        this(0, windowSize);
+    private long onKeepAliveTimer(long now) throws IOException {
+        if (keepAliveInterval == 0 || !isConnected) return now + TIMEOUT * 1000000L;
+
+        long interval = keepAliveInterval * 1000000L;
+        long due = timeOfLastReceive + interval * (keepAlivesSent + 1);
+        if (now - due < 0 || keepAlivesSent >= keepAliveThreshold) return due;
+
+        ReldatPacket probe = new ReldatPacket(advertisedWindow(), seqNum);
+        probe.setProbe();
+        sendPacket(probe, remoteSocketAddress);
+        keepAlivesSent++;
+        return due + interval;
     }
 
     /**
-     * Blocks until a new connection is accepted
-     * <p>
-     * The connection is just a new ReldatSocket for the connection
+     * Resend the oldest packet if it timed out.
      *
-     * @return a new socket for the newly accepted connection
+     * @param now the current time in nanoseconds
+     * @return when it times out next in nanoseconds
+     * @throws IOException if a packet fails to send
      */
-    public ReldatSocket accept() {
-        // Blocks until a connection is accepted
-        while (true) {
-            try {
-                // Blocks until receiving a SYN packet
-                ReldatPacket syn;
-                do {
-                    syn = receivePacket(0);
-                } while (syn == null || !syn.getSYN());
-
-                // Create new socket for the new connection
-                ReldatSocket conn = new ReldatSocket(windowSize);
-                conn.remoteSocketAddress = syn.getSocketAddress();
-
-                // Create SYNACK packet
-                ReldatPacket synack = new ReldatPacket(windowSize, conn.seqNum);
-                synack.setSYN();
-                synack.setACK(calcAck(syn));
-                conn.updateSeqNum(0);
-
-                // Attempt to receive an ACK over CONNECT_TIMEOUT
-                ReldatPacket ack = null;
-                for (int i = 0; i < CONNECT_TIMEOUT / TIMEOUT; ++i) {
-                    conn.sendPacket(synack, syn.getSocketAddress());
-
-                    try {
-                        ack = conn.receivePacket();
-
-                        if (ack.getAckNum() >= calcAck(synack)) {
-                            break;
-                        } else {
-                            ack = null;
-                        }
-                    } catch (SocketTimeoutException e) {
-                    }
-                }
-
-                if (ack != null) {
-                    conn.lastReceived = ack.getSeqNum();
-                    conn.isConnected = true;
-                    return conn;
-                } else {
-                    System.err.println("Failed to receive final ACK. Connection reset");
-                }
-            } catch (IOException e) {
-                System.err.println(e.getMessage());
-            } catch (DisconnectException e) {
-                // This shouldn't happen
+    private long onRetransmitTimer(long now) throws IOException {
+        if (sendWindow.isEmpty()) return now + TIMEOUT * 1000000L;
+
+        // Later segments never time out before the first one, see resend()
+        Segment first = sendWindow.peek();
+        if (now - first.deadline >= 0) {
+            rtt.backoff();
+            if (!recovering) congestion.onCongestion(now);
+            congestion.onTimeout(now);
+            if (!recovering) {
+                recovering = true;
+                recoveryStart = now;
+                recoveryPoint = seqNum;
             }
+            resend(first, now);
+            if (sack) resendHoles(now);
         }
+        return first.deadline;
     }
 
     /**
-     * Connects to destination address:port
+     * Send a segment and start its timer.
      * <p>
-     * This operation blocks until the connection is established.
-     *
-     * @param address the address to connect to
-     * @throws ConnectException when connection fails
+     * The segment carries the current cumulative ACK and window, which
+     * saves sending a separate ACK while data flows both ways. It was
+     * encoded when first sent, so resending it only updates those and the
+     * timestamps in place.
      */
-    public void connect(SocketAddress address) throws ConnectException {
-        ReldatPacket syn = new ReldatPacket(windowSize, seqNum);
-        syn.setSYN();
-        updateSeqNum(0);
-
-        try {
-            // Send SYN and attempt to receive SYNACK over CONNECT_TIMEOUT
-            ReldatPacket synack = null;
-            for (int i = 0; i < CONNECT_TIMEOUT / TIMEOUT; ++i) {
-                sendPacket(syn, address);
+    private void transmit(Segment segment, long now) throws IOException {
+        if (segment.transmissions > 0) {
+            ReldatPacket.updateEncoded(segment.datagram, expectedSeqNum, advertisedWindow(),
+                    micros(now), timestampRecent);
+        }
+        transport.send(segment.datagram, remoteSocketAddress);
+        segment.datagram.rewind();
+        unackedPackets = 0;
+        ackPending = false;
+        segment.transmissions++;
+        segment.sentAt = now;
+        segment.deadline = now + rtt.getRto();
+    }
 
-                try {
-                    synack = receivePacket();
+    /**
+     * Resend a lost segment.
+     * <p>
+     * The segments after it were sent at about the same time, so their
+     * timers are pushed back to its own: whether they were lost too is only
+     * known once it is acknowledged.
+     */
+    private void resend(Segment segment, long now) throws IOException {
+        transmit(segment, now);
+        for (int i = 0; i < sendWindow.size(); ++i) {
+            Segment later = sendWindow.get(i);
+            if (later.deadline - segment.deadline < 0) later.deadline = segment.deadline;
+        }
+    }
 
-                    if (synack.getAckNum() >= calcAck(syn) && synack.getSYN()) break;
-                    else synack = null;
-                } catch (SocketTimeoutException e) {
-                }
-            }
+    /**
+     * Resend the segments in the gaps between SACK blocks that have not
+     * been resent since the recovery started.
+     */
+    private void resendHoles(long now) throws IOException {
+        int last = -1;
+        for (int i = 0; i < sendWindow.size(); ++i) {
+            if (sendWindow.get(i).sacked) last = i;
+        }
 
-            if (synack == null) throw new IOException("timed out on receiving SYNACK");
+        for (int i = 0; i < last; ++i) {
+            Segment segment = sendWindow.get(i);
+            if (!segment.sacked && segment.sentAt - recoveryStart < 0) resend(segment, now);
+        }
+    }
 
-            // Get the address of the newly opened socket on the server
-            SocketAddress newAddress = synack.getSocketAddress();
+    /**
+     * Split queued data into packets and send them while there is room in
+     * the send window: the smaller of the receive window advertised by the
+     * remote socket and the congestion window.
+     * <p>
+     * The connection's own data and the streams with data queued take
+     * turns a packet at a time, so they share the window fairly.
+     */
+    private void pump(long now) throws IOException {
+        if (!isConnected) return;
+
+        int window = Math.min(sendWindowSize, congestion.getWindow());
+        while (sendWindow.size() < window && (!outbound.isEmpty() || !ready.isEmpty())) {
+            ReldatStream stream = null;
+            ArrayDeque<ByteBuffer> queue = outbound;
+            if (!ready.isEmpty() && (streamTurn || outbound.isEmpty())) {
+                stream = ready.remove();
+                queue = stream.outbound;
+            }
+            streamTurn = stream == null;
+
+            ByteBuffer data = queue.peek();
+            ByteBuffer payload = data.slice();
+            int maxPayload = maxPayloadSize() - (stream != null ? ReldatPacket.STREAM_SIZE : 0);
+            payload.limit(Math.min(maxPayload, data.remaining()));
+            data.position(data.position() + payload.limit());
+            if (!data.hasRemaining()) queue.remove();
+
+            // Encode the packet once, straight from the queued data into
+            // the segment's datagram buffer
+            ReldatPacket packet = new ReldatPacket(payload, advertisedWindow(), seqNum);
+            packet.setChecksumAlgorithm(checksum);
+            packet.setACK(expectedSeqNum);
+            if (timestamps) packet.setTimestamps(micros(now), timestampRecent);
+            if (stream != null) {
+                packet.setStream(stream.getId(), stream.sendOffset, stream.outputShutdown && queue.isEmpty());
+                stream.sendOffset += packet.getSize();
+                stream.inFlight++;
+                if (!queue.isEmpty()) ready.add(stream);
+            }
 
-            ReldatPacket ack = new ReldatPacket(windowSize, seqNum);
-            ack.setACK(calcAck(synack));
-            sendPacket(ack, newAddress);
-            updateSeqNum(0);
+            Segment segment = sendWindow.add();
+            segment.stream = stream;
+            segment.seqNum = seqNum;
+            segment.end = calcAck(packet);
+            segment.size = packet.getSize();
+            packet.encode(segment.datagram);
+            segment.datagram.flip();
+            updateSeqNum(packet.getSize());
 
-            lastReceived = synack.getSeqNum();
-            isConnected = true;
-            remoteSocketAddress = newAddress;
-        } catch (IOException e) {
-            throw new ConnectException("Failed to establish connection: " +
-                    e.getMessage());
-        } catch (DisconnectException e) {
-            // This shouldn't happen
+            transmit(segment, now);
         }
-    }
 
-    @Override
-    public boolean isConnected() {
-        return isConnected;
+        // Probe while there is data in flight, so probes do not keep an
+        // idle connection busy
+        if (mtuProbing && !probePending && probeCeiling - segmentSize > PROBE_STEP && !sendWindow.isEmpty()) {
+            sendProbe(now);
+        }
     }
 
-    @Override
-    public SocketAddress getRemoteSocketAddress() {
-        return remoteSocketAddress;
+    /**
+     * Pick the segment size once the remote socket's maximum is known.
+     *
+     * @param remoteMss the largest datagram the remote socket receives, 0 if unknown
+     */
+    private void startSegmentSizing(int remoteMss) {
+        if (remoteMss == 0) remoteMss = BASE_MSS;
+        segmentLimit = Math.min(maxSegmentSize, Math.max(MIN_MSS, remoteMss));
+        if (mtuProbing) {
+            transport.setDontFragment();
+            segmentSize = Math.min(BASE_MSS, segmentLimit);
+            probeCeiling = segmentLimit + 1;
+        } else {
+            segmentSize = segmentLimit;
+        }
     }
 
     /**
-     * Send data through the established connection to the
-     * remote SocketAddress
-     *
-     * @param data the data to send
-     * @throws IOException if the any packet fails to send
-     * @throws DisconnectException if the connection gets disconnected during send
+     * Send a probe of the next size to try.
+     * <p>
+     * The limit is tried first, since on most paths it works. If it does
+     * not, the search halves the range between the size that works and the
+     * size that failed.
      */
-    public void send(byte[] data) throws IOException, DisconnectException {
-        ByteBuffer dataBuffer = ByteBuffer.wrap(data);
-        Queue<ReldatPacket> sendWindow = new ArrayBlockingQueue<>(sendWindowSize);
-
-        // Set time of last receive so connection doesn't instantly close if no
-        // data is received in first iteration
-        timeOfLastReceive = System.nanoTime();
-
-        while (dataBuffer.hasRemaining() || !sendWindow.isEmpty()) {
-            // Convert the next bytes to packets and populate the send window
-            if (sendWindow.size() < sendWindowSize && dataBuffer.hasRemaining()) {
-                int length = Math.min(MSS - ReldatPacket.getHeaderSize(), dataBuffer.remaining());
-                byte[] bytes = new byte[length];
-                dataBuffer.get(bytes);
-
-                ReldatPacket packet = new ReldatPacket(bytes, windowSize, seqNum);
-                updateSeqNum(packet.getSize());
-                sendWindow.offer(packet);
-            } else {
-                // Send everything in send window
-                for (int i = 0; i < sendWindow.size(); ++i) {
-                    // Send the next packet in the window
-                    // and requeue in case it needs to be resent
-                    ReldatPacket packet = sendWindow.poll();
-                    sendPacket(packet, remoteSocketAddress);
-                    sendWindow.offer(packet);
-                }
+    private void sendProbe(long now) {
+        if (probeSize == 0) {
+            probeSize = probeCeiling > segmentLimit ? segmentLimit : (segmentSize + probeCeiling) / 2;
+        }
 
-                // Attempt to receive sendWindow.size() ACKs over the timeout period
-                int size = sendWindow.size();
-                for (int i = 0; i < sendWindow.size(); ++i) {
-                    try {
-                        // Get an ACK
-                        ReldatPacket ack = receivePacket(Math.max(1, TIMEOUT / size));
-                        if (ack.getACK()) {
-                            // Remove all acknowledged packets from the window
-                            while (!sendWindow.isEmpty() &&
-                                    calcAck(sendWindow.peek()) <= ack.getAckNum()) {
-                                sendWindow.remove();
-                            }
-                            lastReceived = Math.max(lastReceived, ack.getSeqNum());
-                        }
-                    } catch (SocketTimeoutException e) {
-                    }
-                }
-            }
-            // Disconnect after a while if no data is received.
-            if ((System.nanoTime() - timeOfLastReceive) / 1000000 > CONNECT_TIMEOUT) {
-                System.err.printf("No data received in %d seconds, disconnecting...\n", CONNECT_TIMEOUT / 1000);
-                close();
-                throw new DisconnectException();
-            }
+        int padding = probeSize - ReldatPacket.getHeaderSize(checksum, timestamps);
+        ReldatPacket probe = new ReldatPacket(new byte[padding], advertisedWindow(), seqNum);
+        probe.setProbe();
+        probeAttempts++;
+        try {
+            sendPacket(probe, remoteSocketAddress);
+        } catch (IOException e) {
+            // Too big for the local interface
+            probeAttempts = MAX_PROBES;
+            onProbeLost();
+            return;
         }
+        probePending = true;
+        probeDeadline = now + rtt.getRto();
     }
 
     /**
-     * Receive bytes from the connection
+     * Use the probed size once its probe is acknowledged. The ACKs of
+     * keepalives and pings, and late ones of probes of other sizes, are
+     * told apart by the size they echo.
      *
-     * @param length the length of the data to receive
-     * @return an array of bytes containing the received data
-     * @throws DisconnectException if the connection is disconnected
+     * @param size the size of the probe acknowledged
      */
-    public byte[] receive(int length) throws DisconnectException {
-        // The total amount of bytes received so far
-        int received = 0;
-
-        // The buffer
-        ByteBuffer buffer = ByteBuffer.allocate(length);
-
-        // The receive window
-        TreeSet<ReldatPacket> window = new TreeSet<>(Comparator.comparingInt(ReldatPacket::getSeqNum));
-
-        // Set time of last receive so connection doesn't instantly close if no
-        // data is received in first iteration
-        timeOfLastReceive = System.nanoTime();
-
-        while (received < length) {
-            // Attempt to receive up to windowSize packets
-            for (int i = 0; window.size() < windowSize && i < windowSize; ++i) {
-                try {
-                    ReldatPacket packet = receivePacket(Math.max(1, TIMEOUT / windowSize));
-                    window.add(packet);
-                } catch (IOException e) {
-                }
-            }
-
-            // Process packets in the window
-            for (Iterator<ReldatPacket> i = window.iterator(); i.hasNext(); ) {
-                ReldatPacket packet = i.next();
-
-                // Handle the next packet received in order
-                if (packet.getSeqNum() <= lastReceived + MSS - ReldatPacket.getHeaderSize() + 1) {
-                    // Ack the packet
-                    ReldatPacket ack = new ReldatPacket(windowSize, seqNum);
-                    updateSeqNum(0);
-                    ack.setACK(calcAck(packet));
-                    try {
-                        sendPacket(ack, remoteSocketAddress);
-                    } catch (IOException e) {
-                        break;
-                    }
+    private void onProbeAck(int size) {
+        if (!probePending || size != probeSize) return;
+        segmentSize = probeSize;
+        probePending = false;
+        probeSize = 0;
+        probeAttempts = 0;
+    }
 
-                    // Update some metadata
-                    lastReceived = packet.getSeqNum();
-                    received += packet.getSize();
+    /**
+     * Give up on the probed size once its probes were lost MAX_PROBES times.
+     */
+    private void onProbeLost() {
+        probePending = false;
+        if (probeAttempts >= MAX_PROBES) {
+            probeCeiling = probeSize;
+            probeSize = 0;
+            probeAttempts = 0;
+        }
+    }
 
-                    // Add data to buffer
-                    if (packet.getData() != null) {
-                        buffer.put(packet.getData(), 0,
-                                Math.min(packet.getSize(), buffer.remaining()));
-                    } else {
-                        break;
-                    }
+    /**
+     * Acknowledge a probe. Probes take up no sequence numbers, so the ACK
+     * number echoes the size of the probe on the wire instead.
+     */
+    private void sendProbeAck(ReldatPacket probe) throws IOException {
+        ReldatPacket ack = new ReldatPacket(advertisedWindow(), seqNum);
+        ack.setACK(probe.getEncodedSize());
+        ack.setProbe();
+        sendPacket(ack, remoteSocketAddress);
+    }
 
-                    // Remove from the receive window
-                    i.remove();
-                } else {
-                    break;
-                }
-            }
+    /**
+     * Send the SYNACK of an accepted connection and schedule the next attempt.
+     */
+    private void sendHandshake(long now) throws IOException {
+        sendPacket(synack, remoteSocketAddress);
+        handshakeAttempts++;
+        handshakeSentAt = now;
+        handshakeDeadline = now + rtt.getRto();
+    }
 
-            // Disconnect after a while if no data is received.
-            if ((System.nanoTime() - timeOfLastReceive) / 1000000 > CONNECT_TIMEOUT) {
-                System.err.printf("No data received in %d seconds, disconnecting...\n", CONNECT_TIMEOUT / 1000);
-                close();
-                throw new DisconnectException();
-            }
+    /**
+     * Measure the round trip time from an ACK.
+     * <p>
+     * With timestamps the ACK echoes when the packet it acknowledges was
+     * sent. Otherwise the packet's send time is used, subject to Karn's
+     * rule.
+     *
+     * @param ack           the ACK
+     * @param sentAt        when the acknowledged packet was last sent in nanoseconds
+     * @param retransmitted whether the acknowledged packet was sent more than once
+     * @param now           the current time in nanoseconds
+     */
+    private void sampleRtt(ReldatPacket ack, long sentAt, boolean retransmitted, long now) {
+        if (timestamps && ack.hasTimestamps()) {
+            rtt.sample((micros(now) - ack.getTimestampEcho()) * 1000L);
+        } else {
+            rtt.sample(sentAt, retransmitted, now);
         }
+    }
 
-        return buffer.array();
+    /**
+     * Send a cumulative ACK for everything received in order, along with
+     * the blocks received out of order if SACK was negotiated.
+     */
+    private void sendAck() throws IOException {
+        // Pure ACKs do not take up a sequence number
+        ReldatPacket ack = new ReldatPacket(advertisedWindow(), seqNum);
+        ack.setACK(expectedSeqNum);
+        if (sack) receiveWindow.addSackBlocks(ack, expectedSeqNum);
+        sendPacket(ack, remoteSocketAddress);
+        unackedPackets = 0;
+        ackPending = false;
     }
 
-    @Override
-    public void close() {
-        // Create a FIN packet
-        ReldatPacket fin = new ReldatPacket(windowSize, seqNum);
-        fin.setFIN();
+    /**
+     * Respond to a FIN packet.
+     */
+    private void sendFinAck(ReldatPacket fin) throws IOException {
+        ReldatPacket finack = new ReldatPacket(advertisedWindow(), seqNum);
         updateSeqNum(0);
-
-        // Attempt to send FIN and receive FINACK over CONNECT_TIMEOUT period
-        for (int i = 0; i < CONNECT_TIMEOUT / TIMEOUT; ++i) {
-            try {
-                sendPacket(fin, remoteSocketAddress);
-                ReldatPacket packet = receivePacket();
-
-                if (packet.getFIN() && calcAck(fin) <= packet.getAckNum()) {
-                    break;
-                }
-            } catch (IOException e) {
-            } catch (DisconnectException e) {
-                break;
-            }
-        }
-
-        // Close if FINACK is received or if timeout
-        super.close();
-        isConnected = false;
+        finack.setFIN();
+        finack.setACK(calcAck(fin));
+        sendPacket(finack, remoteSocketAddress);
     }
 
-    private ReldatPacket receivePacket() throws SocketTimeoutException, DisconnectException {
-        return receivePacket(TIMEOUT);
+    /**
+     * Get the receive window to advertise: the room left for unread data.
+     * <p>
+     * This never goes below one packet, so the remote socket keeps probing
+     * instead of waiting for a window update.
+     *
+     * @return the window size in packets
+     */
+    private int advertisedWindow() {
+        lastAdvertisedWindow = Math.max(1, windowSize - readable.size() - streamHeld);
+        return lastAdvertisedWindow;
     }
 
     /**
      * Receive a ReldatPacket through the socket.
      * <p>
      * This should block until a packet with valid checksum is received
-     * or it times out. Receiving any packet, even if it fails the checksum,
-     * will reset the timeout.
-     * <p>
-     * This also has the side effect of setting the send window to
-     * the received packet's advertised window size.
+     * or it times out. Packets that fail to decode or fail the checksum
+     * are dropped.
      *
-     * @param timeout the timeout in milliseconds. A timeout of 0 is an infinite timeout
-     * @return the packet
-     * @throws SocketTimeoutException if the timeout is reached
-     * @throws DisconnectException if the socket gets disconnected
+     * @param timeout the timeout in milliseconds. A timeout of 0 is an infinite timeout,
+     *                and a negative timeout only returns packets already received
+     * @return the packet or null on timeout
+     * @throws IOException if the socket is closed
      */
-    private ReldatPacket receivePacket(int timeout) throws SocketTimeoutException, DisconnectException {
+    ReldatPacket readPacket(int timeout) throws IOException {
         // Block until a valid packet is received or socket times out
         while (true) {
+            // Receive the packet straight into a pooled buffer
+            ReldatPacket packet = pool.acquire();
             try {
-                // Set the timeout on the underlying UDP socket
-                this.setSoTimeout(timeout);
-
-                // Receive the packet
-                ReldatPacket packet;
-                do {
-                    byte[] buffer = new byte[MSS];
-                    DatagramPacket udpPacket = new DatagramPacket(buffer, MSS);
-
-                    receive(udpPacket);
-                    packet = ReldatPacket.fromUDP(udpPacket);
-                } while (packet == null || !packet.verifyChecksum());
-
-                // Set the sendWindowSize to the other side's advertised receive window
-                this.sendWindowSize = packet.getWindowSize();
-
-                // Handle disconnect logic
-                if (packet.getFIN() && !packet.getACK()) {
-                    // Send a FINACK
-                    ReldatPacket finack = new ReldatPacket(windowSize, seqNum);
-                    updateSeqNum(0);
-                    finack.setFIN();
-                    finack.setACK(calcAck(packet));
-                    sendPacket(packet, remoteSocketAddress);
-
-                    // Mark socket closed and close underlying UDP socket
-                    super.close();
-                    this.isConnected = false;
-                    throw new DisconnectException();
+                SocketAddress from = receiveUnlocked(packet.getBuffer(), timeout);
+                if (from == null) {
+                    pool.release(packet);
+                    return null;
                 }
 
-                timeOfLastReceive = System.nanoTime();
-                return packet;
-            } catch (SocketTimeoutException e) {
-                throw e;
+                packet.getBuffer().flip();
+                packet.decodeBuffer(from);
             } catch (IOException e) {
+                pool.release(packet);
+                if (isClosed()) throw e;
+                continue;
             }
+
+            // decodeBuffer kept the checksum the packet was sent with
+            if (packet.verifyChecksum()) return packet;
+            pool.release(packet);
         }
     }
 
+    /**
+     * Receive a datagram from the transport without holding the lock, so
+     * other threads can use the socket while this one waits.
+     *
+     * @param dst     the buffer to receive into
+     * @param timeout the timeout in milliseconds, see {@link #readPacket(int)}
+     * @return the address the datagram came from or null on timeout
+     * @throws IOException if receiving fails
+     */
+    private SocketAddress receiveUnlocked(ByteBuffer dst, int timeout) throws IOException {
+        int holds = lock.getHoldCount();
+        for (int i = 0; i < holds; ++i) lock.unlock();
+        try {
+            return transport.receive(dst, timeout);
+        } finally {
+            for (int i = 0; i < holds; ++i) lock.lock();
+        }
+    }
+
+    /**
+     * Return packets to the pool.
+     *
+     * @param packets the packets to release
+     */
+    private void releaseAll(Collection<ReldatPacket> packets) {
+        for (ReldatPacket packet : packets) pool.release(packet);
+        packets.clear();
+    }
+
+    /**
+     * Drop the data held by all streams.
+     */
+    private void releaseStreams() {
+        for (ReldatStream stream : streamsById.values()) stream.releaseAll(pool);
+        streamHeld = 0;
+    }
+
     /**
      * Send a ReldatPacket to the desired SocketAddress.
      * <p>
@@ -442,13 +2446,40 @@ public class ReldatSocket extends DatagramSocket {
      *
      * @param packet  the ReldatPacket to send
      * @param address the SocketAddress to send it to
-     * @throws IOException when the packet fails to send or serialization
-     *                     of the packet to bytes fails
+     * @throws IOException when the packet fails to send
      */
     private void sendPacket(ReldatPacket packet, SocketAddress address) throws IOException {
-        byte[] data = packet.getBytes();
-        DatagramPacket udpPacket = new DatagramPacket(data, data.length, address);
-        send(udpPacket);
+        packet.setChecksumAlgorithm(checksum);
+        if (timestamps) packet.setTimestamps(micros(System.nanoTime()), timestampRecent);
+        sendBuffer.clear();
+        packet.encode(sendBuffer);
+        sendBuffer.flip();
+        transport.send(sendBuffer, address);
+    }
+
+    /**
+     * Close the transport and the socket inherited from DatagramSocket, and
+     * drop any data that has not been received in order.
+     */
+    private void closeTransport() {
+        isConnected = false;
+        try {
+            transport.close();
+        } catch (IOException e) {
+        }
+        super.close();
+
+        // What has been received in order stays readable
+        receiveWindow.releaseAll(pool);
+    }
+
+    /**
+     * Get the maximum amount of data that fits in one packet.
+     *
+     * @return the size in bytes
+     */
+    private int maxPayloadSize() {
+        return segmentSize - ReldatPacket.getHeaderSize(checksum, timestamps);
     }
 
     /**
@@ -468,7 +2499,96 @@ public class ReldatSocket extends DatagramSocket {
      * @param packet the packet to acknowledge
      * @return the ACK number
      */
-    private int calcAck(ReldatPacket packet) {
+    static int calcAck(ReldatPacket packet) {
         return (packet.getSeqNum() + packet.getSize() + 1) & Integer.MAX_VALUE;
     }
+
+    /**
+     * Get the timestamp sent in packets for a time.
+     *
+     * @param nanos the time in nanoseconds
+     * @return the time in microseconds, wrapping around
+     */
+    private static int micros(long nanos) {
+        return (int) (nanos / 1000);
+    }
+
+    /**
+     * Compare two sequence numbers, taking wrap around into account.
+     *
+     * @return true if a comes before b
+     */
+    private static boolean seqBefore(int a, int b) {
+        // Sequence numbers are 31 bits, so shift the difference's sign into bit 31
+        return ((a - b) << 1) < 0;
+    }
+
+    /**
+     * Transport on top of the blocking DatagramSocket this class extends.
+     */
+    private final class SocketTransport implements DatagramTransport {
+        private final DatagramPacket sendDatagram = new DatagramPacket(new byte[0], 0);
+        private final DatagramPacket receiveDatagram = new DatagramPacket(new byte[0], 0);
+
+        /**
+         * The timeout currently set on the socket.
+         */
+        private int soTimeout = -1;
+
+        @Override
+        public void send(ByteBuffer datagram, SocketAddress address) throws IOException {
+            sendDatagram.setData(datagram.array(), datagram.arrayOffset() + datagram.position(),
+                    datagram.remaining());
+            sendDatagram.setSocketAddress(address);
+            ReldatSocket.super.send(sendDatagram);
+            datagram.position(datagram.limit());
+        }
+
+        @Override
+        public SocketAddress receive(ByteBuffer dst, int timeout) throws IOException {
+            // The socket has no non-blocking mode, use the shortest timeout
+            if (timeout < 0) timeout = 1;
+
+            // Only update the socket timeout when it changes
+            if (timeout != soTimeout) {
+                setSoTimeout(timeout);
+                soTimeout = timeout;
+            }
+
+            receiveDatagram.setData(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            try {
+                ReldatSocket.super.receive(receiveDatagram);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            dst.position(dst.position() + receiveDatagram.getLength());
+            return receiveDatagram.getSocketAddress();
+        }
+
+        @Override
+        public boolean prefersDirectBuffers() {
+            return false;
+        }
+
+        @Override
+        public boolean setDontFragment() {
+            if (IP_DONTFRAGMENT == null) return false;
+            try {
+                ReldatSocket.this.setOption(IP_DONTFRAGMENT, true);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return ReldatSocket.super.getLocalSocketAddress();
+        }
+
+        @Override
+        public void close() {
+            ReldatSocket.super.close();
+        }
+    }
 }
@@ -0,0 +1,309 @@
+package network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One of the independent byte streams carried by a connection.
+ * <p>
+ * Streams share the connection's packets, retransmissions and receive
+ * window, but each is reassembled on its own: a lost packet only holds up
+ * the stream it belongs to, and the send window is shared between the
+ * streams with data queued a packet at a time. Streams are opened with
+ * {@link ReldatSocket#openStream()} and the remote socket's are taken with
+ * {@link ReldatSocket#acceptStream()}.
+ * <p>
+ * Like the connection, a stream can be read and written from different
+ * threads at the same time. All of its state is guarded by the socket's
+ * lock.
+ */
+public final class ReldatStream implements ByteChannel {
+    private final ReldatSocket socket;
+    private final int id;
+
+    /**
+     * Data written but not yet split into packets, the offset in the stream
+     * of the next packet, the number of its packets not acknowledged yet,
+     * and whether the end of the stream has been queued.
+     */
+    final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    int sendOffset;
+    int inFlight;
+    boolean outputShutdown;
+
+    /**
+     * Packets received in order whose data has not been read yet, how much
+     * of the first one has been read, and the packets received ahead of the
+     * next offset expected, by offset.
+     */
+    private final ArrayDeque<ReldatPacket> readable = new ArrayDeque<>();
+    private int readOffset;
+    private final Map<Integer, ReldatPacket> pending = new HashMap<>();
+
+    /**
+     * The offset expected next in order, the number of bytes received in
+     * any order, and where the stream ends once the remote socket sent its
+     * end.
+     */
+    private int receiveOffset, received;
+    private boolean finReceived;
+    private int finOffset;
+
+    /**
+     * Whether the stream was closed locally, so data still arriving on it
+     * is dropped.
+     */
+    boolean closed;
+
+    ReldatStream(ReldatSocket socket, int id) {
+        this.socket = socket;
+        this.id = id;
+    }
+
+    /**
+     * Get the stream's ID. Streams opened by the connecting side have odd
+     * IDs, those opened by the accepting side even ones.
+     *
+     * @return the ID
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Block until some data has been read.
+     *
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or -1 once the remote socket ended
+     * the stream or closed the connection and everything received has been read
+     * @throws IOException if the connection times out
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        try {
+            return socket.readStream(this, dst);
+        } catch (DisconnectException e) {
+            throw new IOException("Connection timed out");
+        }
+    }
+
+    /**
+     * Block until all of the data has been put in packets.
+     *
+     * @param src the data to send
+     * @return the number of bytes sent
+     * @throws IOException if the stream's output is shut down or a packet fails to send
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!isOpen() || outputShutdown) throw new ClosedChannelException();
+        try {
+            return socket.writeStream(this, src);
+        } catch (DisconnectException e) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    /**
+     * Queue data to be sent without blocking.
+     * <p>
+     * As much of the data as the send window allows is sent right away, the
+     * rest as ACKs arrive. The buffer belongs to the stream until all of its
+     * data has been sent. This keeps a thread that answers while the request
+     * is still arriving reading it, rather than holding up the connection's
+     * receive window while it waits for room to send.
+     *
+     * @param src the data to send
+     * @throws IOException if the stream's output is shut down or a packet fails to send
+     */
+    public void queue(ByteBuffer src) throws IOException {
+        if (!isOpen() || outputShutdown) throw new ClosedChannelException();
+        socket.queueStream(this, src);
+    }
+
+    /**
+     * Block until no more than limit bytes queued are left to put in
+     * packets. With {@link #queue(ByteBuffer)} this bounds the memory held
+     * by data queued faster than the remote socket reads it.
+     *
+     * @param limit the number of bytes
+     * @throws IOException if a packet fails to send or the connection is closed
+     */
+    public void awaitQueued(int limit) throws IOException {
+        try {
+            socket.awaitStreamQueued(this, limit);
+        } catch (DisconnectException e) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    /**
+     * End the stream for the remote socket, blocking until everything
+     * written to it has been acknowledged. It can still be read from.
+     *
+     * @throws IOException if a packet fails to send or the connection times out
+     */
+    public void shutdownOutput() throws IOException {
+        try {
+            socket.shutdownStream(this);
+        } catch (DisconnectException e) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && !socket.isClosed();
+    }
+
+    /**
+     * End the stream for the remote socket if it has not been, and drop
+     * any data received on it.
+     */
+    @Override
+    public void close() {
+        socket.closeStream(this);
+    }
+
+    /**
+     * Get a stream that reads the data received on this stream.
+     *
+     * @return the input stream
+     */
+    public InputStream getInputStream() {
+        return Channels.newInputStream(this);
+    }
+
+    /**
+     * Get a stream that writes on this stream. Closing it ends the stream.
+     *
+     * @return the output stream
+     */
+    public OutputStream getOutputStream() {
+        return Channels.newOutputStream(this);
+    }
+
+    /**
+     * Take a packet received on the stream, in any order.
+     * <p>
+     * The stream owns the packet afterwards.
+     *
+     * @param packet the packet
+     * @param pool   the pool to release packets that are not kept to
+     * @return the number of packets kept
+     */
+    int onPacket(ReldatPacket packet, PacketPool pool) {
+        received += packet.getSize();
+        if (packet.isStreamFin()) {
+            finReceived = true;
+            finOffset = packet.getStreamOffset() + packet.getSize();
+        }
+        if (closed || packet.getSize() == 0) {
+            pool.release(packet);
+            return 0;
+        }
+
+        if (packet.getStreamOffset() != receiveOffset) {
+            pending.put(packet.getStreamOffset(), packet);
+            return 1;
+        }
+        for (ReldatPacket next = packet; next != null; next = pending.remove(receiveOffset)) {
+            readable.add(next);
+            receiveOffset += next.getSize();
+        }
+        return 1;
+    }
+
+    /**
+     * Read the data that has been received in order.
+     *
+     * @param dst  the buffer to read into
+     * @param pool the pool to release read packets to
+     * @return the number of bytes read
+     */
+    int drain(ByteBuffer dst, PacketPool pool) {
+        int read = 0;
+        while (dst.hasRemaining() && !readable.isEmpty()) {
+            ReldatPacket packet = readable.peek();
+            int copied = packet.copyData(readOffset, dst);
+            read += copied;
+            readOffset += copied;
+
+            if (readOffset == packet.getSize()) {
+                readable.remove();
+                pool.release(packet);
+                readOffset = 0;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Get the number of received packets the stream holds.
+     *
+     * @return the number of packets
+     */
+    int held() {
+        return readable.size() + pending.size();
+    }
+
+    /**
+     * Drop all received packets, returning them to a pool.
+     *
+     * @param pool the pool
+     */
+    void releaseAll(PacketPool pool) {
+        for (ReldatPacket packet : readable) pool.release(packet);
+        for (ReldatPacket packet : pending.values()) pool.release(packet);
+        readable.clear();
+        pending.clear();
+        readOffset = 0;
+    }
+
+    /**
+     * Check if the remote socket ended the stream and all of it has arrived.
+     *
+     * @return true if no more data arrives on the stream
+     */
+    boolean isInputComplete() {
+        return finReceived && received == finOffset;
+    }
+
+    /**
+     * Check if everything received on the stream has been read and no more
+     * is coming.
+     *
+     * @return true at the end of the stream
+     */
+    boolean isAtEnd() {
+        return readable.isEmpty() && isInputComplete();
+    }
+
+    /**
+     * Check if the stream has been ended and all of its data acknowledged.
+     *
+     * @return true if nothing more is sent on the stream
+     */
+    boolean isOutputComplete() {
+        return outputShutdown && outbound.isEmpty() && inFlight == 0;
+    }
+
+    /**
+     * Get the number of bytes queued that have not been put in packets yet.
+     *
+     * @return the number of bytes
+     */
+    int queuedBytes() {
+        int queued = 0;
+        for (ByteBuffer data : outbound) queued += data.remaining();
+        return queued;
+    }
+}
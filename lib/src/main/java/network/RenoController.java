@@ -0,0 +1,38 @@
+package network;
+
+/**
+ * Additive increase, multiplicative decrease as in TCP Reno (RFC 5681).
+ * <p>
+ * The window grows by one packet per ACK in slow start and by one packet
+ * per round trip after that, and halves on loss.
+ */
+final class RenoController implements CongestionController {
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = Double.MAX_VALUE;
+
+    /** The window a connection starts with in packets, as in RFC 6928 */
+    static final int INITIAL_WINDOW = 10;
+
+    @Override
+    public int getWindow() {
+        return (int) cwnd;
+    }
+
+    @Override
+    public void onAck(int packets, long now, long srtt) {
+        for (int i = 0; i < packets; ++i) {
+            cwnd += cwnd < ssthresh ? 1 : 1 / cwnd;
+        }
+    }
+
+    @Override
+    public void onCongestion(long now) {
+        ssthresh = Math.max(cwnd / 2, 2);
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public void onTimeout(long now) {
+        cwnd = 1;
+    }
+}
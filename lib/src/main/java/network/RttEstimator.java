@@ -0,0 +1,81 @@
+package network;
+
+/**
+ * Retransmission timeout calculated from round trip time samples, as in
+ * RFC 6298.
+ * <p>
+ * Until the first sample the timeout is the initial one. Every timeout
+ * that expires doubles it, until the next sample resets it from the
+ * smoothed round trip time and its variation.
+ */
+final class RttEstimator {
+    /** Bounds of the timeout in nanoseconds */
+    private static final long MIN_RTO = 50 * 1000000L, MAX_RTO = 60 * 1000000000L;
+
+    /** Smoothed round trip time and its variation in nanoseconds, 0 before the first sample */
+    private long srtt, rttvar;
+    private long rto;
+
+    /**
+     * @param initialRto the timeout before the first sample in milliseconds
+     */
+    RttEstimator(int initialRto) {
+        this.rto = initialRto * 1000000L;
+    }
+
+    /**
+     * Update the estimate with a new measurement.
+     *
+     * @param rtt the round trip time in nanoseconds
+     */
+    void sample(long rtt) {
+        if (rtt < 0) return;
+
+        if (srtt == 0) {
+            srtt = Math.max(1, rtt);
+            rttvar = rtt / 2;
+        } else {
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+        }
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + 4 * rttvar));
+    }
+
+    /**
+     * Update the estimate from when the acknowledged packet was sent. The
+     * time is only used if the packet was sent once, since it is ambiguous
+     * which transmission is acknowledged otherwise (Karn's rule).
+     *
+     * @param sentAt        when the packet was last sent in nanoseconds
+     * @param retransmitted whether the packet was sent more than once
+     * @param now           the current time in nanoseconds
+     */
+    void sample(long sentAt, boolean retransmitted, long now) {
+        if (!retransmitted) sample(now - sentAt);
+    }
+
+    /**
+     * Double the timeout after it expired.
+     */
+    void backoff() {
+        rto = Math.min(MAX_RTO, rto * 2);
+    }
+
+    /**
+     * Get the current retransmission timeout.
+     *
+     * @return the timeout in nanoseconds
+     */
+    long getRto() {
+        return rto;
+    }
+
+    /**
+     * Get the smoothed round trip time.
+     *
+     * @return the time in nanoseconds, or 0 before the first sample
+     */
+    long getSrtt() {
+        return srtt;
+    }
+}
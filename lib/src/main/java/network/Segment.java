@@ -0,0 +1,52 @@
+package network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A slot of the send window: a data packet, encoded once, with its
+ * retransmission timer.
+ * <p>
+ * Slots are reused for later packets once acknowledged, along with their
+ * datagram buffer.
+ */
+final class Segment {
+    /**
+     * The encoded packet, between position and limit.
+     */
+    final ByteBuffer datagram;
+
+    /**
+     * The packet's sequence number, the ACK number acknowledging it and
+     * the size of its data.
+     */
+    int seqNum;
+    int end;
+    int size;
+
+    /**
+     * When the packet was last sent and when it is due to be resent, in
+     * nanoseconds.
+     */
+    long sentAt;
+    long deadline;
+
+    /**
+     * The number of times the packet has been sent.
+     */
+    int transmissions;
+
+    /**
+     * Whether the remote socket reported the packet in a SACK block.
+     */
+    boolean sacked;
+
+    /**
+     * The stream the packet's data belongs to, or null for the
+     * connection's own stream.
+     */
+    ReldatStream stream;
+
+    Segment(ByteBuffer datagram) {
+        this.datagram = datagram;
+    }
+}
@@ -0,0 +1,96 @@
+package network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The packets sent but not acknowledged yet, oldest first.
+ * <p>
+ * The segments are kept in a ring and reused once acknowledged, along
+ * with their datagram buffers, so sending allocates nothing once the ring
+ * has grown to the largest window. Like {@link PacketPool} it is not
+ * thread-safe.
+ */
+final class SendWindow {
+    private final int bufferSize;
+    private final boolean direct;
+
+    private Segment[] segments = new Segment[16];
+    private int head, size;
+
+    /**
+     * @param bufferSize the size of each datagram buffer in bytes
+     * @param direct     whether to allocate direct datagram buffers
+     */
+    SendWindow(int bufferSize, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get a segment in the window.
+     *
+     * @param i the index, 0 for the oldest
+     * @return the segment
+     */
+    Segment get(int i) {
+        return segments[(head + i) & (segments.length - 1)];
+    }
+
+    /**
+     * Get the oldest segment.
+     *
+     * @return the segment or null if the window is empty
+     */
+    Segment peek() {
+        return size == 0 ? null : segments[head];
+    }
+
+    /**
+     * Add a segment at the end of the window.
+     *
+     * @return the segment, with its timer state reset and an empty datagram
+     * buffer to encode the packet into
+     */
+    Segment add() {
+        if (size == segments.length) grow();
+
+        int i = (head + size++) & (segments.length - 1);
+        Segment segment = segments[i];
+        if (segment == null) {
+            ByteBuffer datagram = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            segment = segments[i] = new Segment(datagram);
+        }
+        segment.datagram.clear();
+        segment.transmissions = 0;
+        segment.sacked = false;
+        segment.stream = null;
+        return segment;
+    }
+
+    /**
+     * Remove the oldest segment.
+     *
+     * @return the segment, which is only valid until the next add
+     */
+    Segment remove() {
+        Segment segment = segments[head];
+        head = (head + 1) & (segments.length - 1);
+        --size;
+        return segment;
+    }
+
+    private void grow() {
+        Segment[] grown = new Segment[segments.length * 2];
+        for (int i = 0; i < size; ++i) grown[i] = get(i);
+        segments = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,180 @@
+package network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timers kept on a hashed wheel, so scheduling and cancelling one takes
+ * constant time however many there are.
+ * <p>
+ * Time is cut into ticks, and a timer goes in the bucket of the tick its
+ * deadline falls in, modulo the number of buckets. Expiring visits the
+ * buckets of the ticks that are over, firing their timers and leaving
+ * those due on a later turn of the wheel. A timer fires up to a tick
+ * late, never early. Only the buckets of ticks that passed are visited,
+ * so the cost of expiring depends on the timers due, not on how many are
+ * scheduled.
+ * <p>
+ * Like {@link PacketPool} it is not thread-safe.
+ */
+final class TimerWheel {
+    private static final int IDLE = 0, SCHEDULED = 1, DUE = 2;
+
+    /**
+     * A timer on the wheel. A timer is scheduled at most once at a time:
+     * scheduling it again moves it.
+     */
+    abstract static class Timer {
+        private int state = IDLE;
+        private long tick;
+        private Timer prev, next;
+
+        /**
+         * Called once the deadline has passed. The timer is no longer
+         * scheduled, and can be scheduled again from here.
+         *
+         * @param now the current time in nanoseconds
+         */
+        abstract void onExpired(long now);
+
+        final boolean isScheduled() {
+            return state != IDLE;
+        }
+    }
+
+    private final Timer[] buckets;
+    private final int mask;
+    private final long tickNanos, origin;
+
+    /**
+     * The first tick that is not over yet, a tick no timer is due before,
+     * and the number of timers on the wheel.
+     */
+    private long current, earliest;
+    private int size;
+
+    private final List<Timer> due = new ArrayList<>();
+
+    /**
+     * @param tickNanos the length of a tick in nanoseconds
+     * @param buckets   the number of buckets, rounded up to a power of two
+     * @param now       the current time in nanoseconds
+     */
+    TimerWheel(long tickNanos, int buckets, long now) {
+        int capacity = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+        this.buckets = new Timer[capacity];
+        this.mask = capacity - 1;
+        this.tickNanos = tickNanos;
+        this.origin = now;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Schedule a timer, moving it if it is already scheduled. A deadline
+     * that has passed fires on the next expire.
+     *
+     * @param timer    the timer
+     * @param deadline when it is due in nanoseconds
+     */
+    void schedule(Timer timer, long deadline) {
+        cancel(timer);
+
+        long tick = Math.max(tickOf(deadline), current);
+        int i = (int) tick & mask;
+        timer.tick = tick;
+        timer.prev = null;
+        timer.next = buckets[i];
+        if (buckets[i] != null) buckets[i].prev = timer;
+        buckets[i] = timer;
+        timer.state = SCHEDULED;
+        ++size;
+        earliest = Math.min(earliest, tick);
+    }
+
+    /**
+     * Cancel a timer if it is scheduled, including one about to fire in
+     * the expire running.
+     *
+     * @param timer the timer
+     */
+    void cancel(Timer timer) {
+        if (timer.state == SCHEDULED) unlink(timer);
+        timer.state = IDLE;
+    }
+
+    /**
+     * Fire the timers due in the ticks that are over.
+     *
+     * @param now the current time in nanoseconds
+     * @return the number of timers fired
+     */
+    int expire(long now) {
+        long end = tickOf(now);
+        if (end <= current) return 0;
+
+        // Each bucket is visited at most once, starting from the earliest
+        // one that can have a timer
+        long first = Math.max(current, Math.min(earliest, end));
+        long last = Math.min(end, first + buckets.length);
+        for (long tick = first; tick < last; ++tick) {
+            Timer timer = buckets[(int) tick & mask];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.tick < end) {
+                    unlink(timer);
+                    timer.state = DUE;
+                    due.add(timer);
+                }
+                timer = next;
+            }
+        }
+        current = end;
+        earliest = end;
+
+        // Fired after the sweep, as they may schedule or cancel others
+        int fired = 0;
+        for (Timer timer : due) {
+            if (timer.state != DUE) continue;
+            timer.state = IDLE;
+            timer.onExpired(now);
+            ++fired;
+        }
+        due.clear();
+        return fired;
+    }
+
+    /**
+     * Get when expire should be called next: once the tick of the first
+     * bucket with a timer is over. That bucket may only hold timers due
+     * on a later turn, in which case expire fires nothing.
+     *
+     * @return the time in nanoseconds, or Long.MAX_VALUE if there are no timers
+     */
+    long nextExpiry() {
+        if (size == 0) return Long.MAX_VALUE;
+
+        long tick = Math.max(current, earliest);
+        while (buckets[(int) tick & mask] == null) ++tick;
+        earliest = tick;
+        return origin + (tick + 1) * tickNanos;
+    }
+
+    private long tickOf(long time) {
+        return Math.floorDiv(time - origin, tickNanos);
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            buckets[(int) timer.tick & mask] = timer.next;
+        }
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+        --size;
+    }
+}
@@ -0,0 +1,113 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CongestionControllerTest {
+    private static final long SECOND = 1000000000L, RTT = SECOND / 10;
+
+    /**
+     * ACK a full window every round trip for a while.
+     *
+     * @return the time after the last round trip
+     */
+    private static long ackRounds(CongestionController controller, long now, int rounds) {
+        for (int i = 0; i < rounds; ++i) {
+            now += RTT;
+            controller.onAck(controller.getWindow(), now, RTT);
+        }
+        return now;
+    }
+
+    @Test
+    void testSlowStart() {
+        for (CongestionAlgorithm algorithm : new CongestionAlgorithm[]{CongestionAlgorithm.RENO, CongestionAlgorithm.CUBIC}) {
+            CongestionController controller = algorithm.newController();
+            assertEquals(RenoController.INITIAL_WINDOW, controller.getWindow());
+
+            // One packet per ACK, so the window doubles every round trip
+            controller.onAck(1, SECOND, 0);
+            assertEquals(11, controller.getWindow());
+            controller.onAck(5, SECOND, 0);
+            assertEquals(16, controller.getWindow());
+            ackRounds(controller, SECOND, 3);
+            assertEquals(128, controller.getWindow());
+        }
+    }
+
+    @Test
+    void testRenoLoss() {
+        CongestionController controller = CongestionAlgorithm.RENO.newController();
+        controller.onAck(90, SECOND, 0);
+        controller.onCongestion(SECOND);
+        assertEquals(50, controller.getWindow());
+
+        // Then about one packet per round trip
+        ackRounds(controller, SECOND, 10);
+        assertTrue(controller.getWindow() >= 59 && controller.getWindow() <= 60, "window " + controller.getWindow());
+
+        // Never below 2
+        CongestionController small = CongestionAlgorithm.RENO.newController();
+        for (int i = 0; i < 5; ++i) small.onCongestion(SECOND);
+        assertEquals(2, small.getWindow());
+    }
+
+    @Test
+    void testCubicLoss() {
+        CongestionController controller = CongestionAlgorithm.CUBIC.newController();
+        controller.onAck(90, SECOND, 0);
+        controller.onCongestion(SECOND);
+        assertEquals(70, controller.getWindow());
+
+        // Back near the window of the loss after K = cbrt(30 / 0.4) s,
+        // growing slowly around it
+        long now = ackRounds(controller, SECOND, 40);
+        assertTrue(controller.getWindow() >= 97 && controller.getWindow() <= 100, "window " + controller.getWindow());
+        now = ackRounds(controller, now, 10);
+        assertTrue(controller.getWindow() <= 102, "window " + controller.getWindow());
+
+        // Then probing well beyond it
+        ackRounds(controller, now, 50);
+        assertTrue(controller.getWindow() > 150, "window " + controller.getWindow());
+    }
+
+    @Test
+    void testCubicFastConvergence() {
+        CongestionController controller = CongestionAlgorithm.CUBIC.newController();
+        controller.onAck(90, SECOND, 0);
+        controller.onCongestion(SECOND);
+        assertEquals(70, controller.getWindow());
+
+        // A loss below the last one centres growth on 70 * (1 + 0.7) / 2
+        // rather than on the window it happened at
+        controller.onCongestion(SECOND);
+        assertEquals(49, controller.getWindow());
+        ackRounds(controller, SECOND, 20);
+        assertTrue(controller.getWindow() >= 58 && controller.getWindow() <= 60, "window " + controller.getWindow());
+    }
+
+    @Test
+    void testTimeout() {
+        for (CongestionAlgorithm algorithm : new CongestionAlgorithm[]{CongestionAlgorithm.RENO, CongestionAlgorithm.CUBIC}) {
+            CongestionController controller = algorithm.newController();
+            controller.onAck(90, SECOND, 0);
+            controller.onCongestion(SECOND);
+            controller.onTimeout(SECOND);
+            assertEquals(1, controller.getWindow());
+
+            // Slow start again up to the window after the loss
+            ackRounds(controller, SECOND, 5);
+            assertEquals(32, controller.getWindow());
+        }
+    }
+
+    @Test
+    void testNone() {
+        CongestionController controller = CongestionAlgorithm.NONE.newController();
+        assertEquals(Integer.MAX_VALUE, controller.getWindow());
+        controller.onCongestion(SECOND);
+        controller.onTimeout(SECOND);
+        assertEquals(Integer.MAX_VALUE, controller.getWindow());
+    }
+}
@@ -0,0 +1,163 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Drives the sending side of a connection with made up ACKs and checks
+ * when it retransmits.
+ */
+class DuplicateAckTest {
+    private static final int WINDOW_SIZE = 32;
+
+    private final FakeTransport transport = new FakeTransport();
+    private ReldatSocket sock;
+
+    /** The next sequence number of the made up remote socket */
+    private int remoteSeqNum;
+
+    /** The data packets sent, in order */
+    private final List<ReldatPacket> sent = new ArrayList<>();
+
+    private static <T> FutureTask<T> start(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        Thread thread = new Thread(future);
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    /**
+     * Connect the socket to the made up remote socket and send 5 packets
+     * of data, none of them acknowledged yet.
+     */
+    private void connectAndSend() throws Exception {
+        sock = new ReldatSocket(transport, WINDOW_SIZE);
+        FutureTask<Void> connecting = start(() -> {
+            sock.connect(FakeTransport.REMOTE);
+            return null;
+        });
+        ReldatPacket syn = transport.nextSent(5000);
+        assertTrue(syn.getSYN());
+
+        // A slow handshake keeps the retransmission timeout well above the
+        // time the test takes, so only duplicate ACKs cause retransmits
+        Thread.sleep(500);
+        ConnectionOptions chosen = new ConnectionOptions();
+        chosen.checksums.add(ChecksumAlgorithm.DEFAULT);
+        ReldatPacket synack = new ReldatPacket(chosen.toBytes(), WINDOW_SIZE, 0);
+        synack.setSYN();
+        synack.setACK(ReldatSocket.calcAck(syn));
+        remoteSeqNum = ReldatSocket.calcAck(synack);
+        transport.deliver(synack);
+        connecting.get(5, TimeUnit.SECONDS);
+        assertTrue(transport.nextSent(5000).getACK());
+
+        start(() -> {
+            sock.send(new byte[5 * 1000]);
+            return null;
+        });
+        for (int size = 0; size < 5 * 1000; ) {
+            ReldatPacket packet = transport.nextData(5000);
+            sent.add(packet);
+            size += packet.getSize();
+        }
+        assertTrue(sent.size() >= 5);
+        assertNull(transport.nextData(100));
+    }
+
+    private ReldatPacket ack(int ackNum, int window) {
+        ReldatPacket ack = new ReldatPacket(window, remoteSeqNum);
+        ack.setACK(ackNum);
+        return ack;
+    }
+
+    /**
+     * Acknowledge the first packet sent, then repeat that ACK.
+     *
+     * @param duplicates the number of duplicates
+     * @return the ACK number
+     */
+    private int ackFirst(int duplicates) {
+        int ackNum = ReldatSocket.calcAck(sent.get(0));
+        for (int i = 0; i <= duplicates; ++i) transport.deliver(ack(ackNum, WINDOW_SIZE));
+        return ackNum;
+    }
+
+    private void assertRetransmitted(ReldatPacket expected) throws Exception {
+        ReldatPacket packet = transport.nextData(1000);
+        assertNotNull(packet, "nothing retransmitted");
+        assertEquals(expected.getSeqNum(), packet.getSeqNum());
+        assertArrayEquals(expected.getData(), packet.getData());
+    }
+
+    @Test
+    void testThirdDuplicateRetransmitsOnce() throws Exception {
+        connectAndSend();
+        try {
+            int ackNum = ackFirst(2);
+            assertNull(transport.nextData(300));
+
+            // The head of the send window is resent, and nothing else
+            transport.deliver(ack(ackNum, WINDOW_SIZE));
+            assertRetransmitted(sent.get(1));
+            assertNull(transport.nextData(300));
+
+            // Nor again for further duplicates of the same ACK
+            transport.deliver(ack(ackNum, WINDOW_SIZE));
+            transport.deliver(ack(ackNum, WINDOW_SIZE));
+            assertNull(transport.nextData(300));
+        } finally {
+            sock.abort();
+        }
+    }
+
+    @Test
+    void testWindowUpdateResetsCount() throws Exception {
+        connectAndSend();
+        try {
+            int ackNum = ackFirst(2);
+
+            // Opening the window is not a duplicate, and starts the count over
+            transport.deliver(ack(ackNum, WINDOW_SIZE + 4));
+            transport.deliver(ack(ackNum, WINDOW_SIZE + 4));
+            transport.deliver(ack(ackNum, WINDOW_SIZE + 4));
+            assertNull(transport.nextData(300));
+
+            transport.deliver(ack(ackNum, WINDOW_SIZE + 4));
+            assertRetransmitted(sent.get(1));
+        } finally {
+            sock.abort();
+        }
+    }
+
+    @Test
+    void testSeparateRunsDoNotAddUp() throws Exception {
+        connectAndSend();
+        try {
+            int ackNum = ackFirst(2);
+
+            // Data from the remote socket carries the same ACK, but is not
+            // a duplicate either
+            ReldatPacket data = new ReldatPacket(new byte[]{1, 2, 3}, WINDOW_SIZE, remoteSeqNum);
+            data.setACK(ackNum);
+            remoteSeqNum = ReldatSocket.calcAck(data);
+            transport.deliver(data);
+            transport.deliver(ack(ackNum, WINDOW_SIZE));
+            transport.deliver(ack(ackNum, WINDOW_SIZE));
+            assertNull(transport.nextData(300));
+
+            transport.deliver(ack(ackNum, WINDOW_SIZE));
+            assertRetransmitted(sent.get(1));
+        } finally {
+            sock.abort();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport that hands the datagrams a socket sends to the test instead
+ * of the network, and delivers the packets the test makes up as if they
+ * came from a remote socket.
+ */
+final class FakeTransport implements DatagramTransport {
+    static final SocketAddress LOCAL = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7);
+    static final SocketAddress REMOTE = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9);
+
+    private final BlockingQueue<byte[]> sent = new LinkedBlockingQueue<>();
+    private final BlockingQueue<byte[]> inbound = new LinkedBlockingQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * Deliver a packet to the socket.
+     *
+     * @param packet the packet, encoded with its checksum
+     */
+    void deliver(ReldatPacket packet) {
+        inbound.add(packet.getBytes());
+    }
+
+    /**
+     * Wait for the next packet the socket sends.
+     *
+     * @param timeout the time to wait in milliseconds
+     * @return the packet, or null if none was sent in time
+     */
+    ReldatPacket nextSent(int timeout) throws IOException, InterruptedException {
+        byte[] datagram = sent.poll(timeout, TimeUnit.MILLISECONDS);
+        return datagram == null ? null : ReldatPacket.fromBytes(datagram);
+    }
+
+    /**
+     * Wait for the next packet the socket sends that carries data, skipping
+     * ACKs and probes.
+     *
+     * @param timeout the time to wait in milliseconds
+     * @return the packet, or null if none was sent in time
+     */
+    ReldatPacket nextData(int timeout) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (true) {
+            long remaining = (deadline - System.nanoTime()) / 1000000;
+            ReldatPacket packet = remaining > 0 ? nextSent((int) remaining) : null;
+            if (packet == null || packet.getSize() > 0 && !packet.isProbe()) return packet;
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer datagram, SocketAddress address) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        byte[] copy = new byte[datagram.remaining()];
+        datagram.get(copy);
+        sent.add(copy);
+    }
+
+    @Override
+    public SocketAddress receive(ByteBuffer dst, int timeout) throws IOException {
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        try {
+            while (true) {
+                if (closed) throw new ClosedChannelException();
+
+                // Wake up now and then to notice the transport was closed
+                long remaining = timeout == 0 ? 100 : Math.min(100, (deadline - System.nanoTime()) / 1000000);
+                byte[] datagram = timeout < 0 ? inbound.poll() : inbound.poll(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+                if (datagram != null) {
+                    dst.put(datagram);
+                    return REMOTE;
+                }
+                if (timeout < 0 || timeout > 0 && deadline - System.nanoTime() <= 0) return null;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public boolean prefersDirectBuffers() {
+        return false;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return LOCAL;
+    }
+
+    @Override
+    public boolean setDontFragment() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
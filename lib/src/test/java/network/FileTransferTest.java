@@ -0,0 +1,163 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Transfers files between two connected sockets over loopback.
+ */
+class FileTransferTest {
+    private static final int WINDOW_SIZE = 32;
+
+    /**
+     * Connect a socket to one accepted on another.
+     *
+     * @return the connecting socket and the accepted one
+     */
+    private static ReldatSocket[] connect(ReldatSocket.Engine engine) throws Exception {
+        ReldatSocket listener = new ReldatSocket(0, WINDOW_SIZE, engine);
+        try {
+            FutureTask<ReldatSocket> accepted = start(listener::accept);
+            ReldatSocket sender = new ReldatSocket(0, WINDOW_SIZE, engine);
+            int port = ((InetSocketAddress) listener.getLocalSocketAddress()).getPort();
+            sender.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            return new ReldatSocket[]{sender, accepted.get(10, TimeUnit.SECONDS)};
+        } finally {
+            listener.close();
+        }
+    }
+
+    private static <T> FutureTask<T> start(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        Thread thread = new Thread(future);
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    private static Path randomFile(Random r, int size) throws IOException {
+        byte[] data = new byte[size];
+        r.nextBytes(data);
+        Path path = Files.createTempFile("reldat", ".bin");
+        Files.write(path, data);
+        return path;
+    }
+
+    private static FileChannel openOutput(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Read from a socket until the remote socket closes it.
+     */
+    private static void awaitEnd(ReldatSocket sock) throws IOException {
+        assertEquals(-1, sock.getByteChannel().read(ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    void testWholeFile() throws Exception {
+        for (ReldatSocket.Engine engine : ReldatSocket.Engine.values()) {
+            Random r = new Random(42);
+            Path in = randomFile(r, 3 * 1024 * 1024 + 123), out = Files.createTempFile("reldat", ".bin");
+            ReldatSocket[] socks = connect(engine);
+            try (FileChannel src = FileChannel.open(in); FileChannel dst = openOutput(out)) {
+                long size = src.size();
+                FutureTask<Long> received = start(() -> {
+                    long count = socks[1].receiveToFile(dst, size);
+                    awaitEnd(socks[1]);
+                    return count;
+                });
+
+                assertEquals(size, socks[0].sendFile(src));
+                assertEquals(size, src.position());
+                socks[0].close();
+
+                assertEquals(size, (long) received.get(30, TimeUnit.SECONDS));
+                assertEquals(size, dst.position());
+                assertArrayEquals(Files.readAllBytes(in), Files.readAllBytes(out));
+            } finally {
+                socks[0].close();
+                socks[1].close();
+                Files.delete(in);
+                Files.delete(out);
+            }
+        }
+    }
+
+    @Test
+    void testPartsOfFile() throws Exception {
+        Random r = new Random(7);
+        Path in = randomFile(r, 500000), out = Files.createTempFile("reldat", ".bin");
+        ReldatSocket[] socks = connect(ReldatSocket.Engine.CHANNEL);
+        try (FileChannel src = FileChannel.open(in); FileChannel dst = openOutput(out)) {
+            // Received in two parts, after what is in the file already
+            dst.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            FutureTask<Long> received = start(() -> {
+                long count = socks[1].receiveToFile(dst, 100000);
+                count += socks[1].receiveToFile(dst, 300000);
+                awaitEnd(socks[1]);
+                return count;
+            });
+
+            // Sent from the middle, in a part that does not wait for ACKs
+            // and one cut short by the end of the file
+            src.position(100000);
+            assertEquals(100000, socks[0].sendFile(src, 100000));
+            assertEquals(200000, src.position());
+            assertEquals(300000, socks[0].sendFile(src, 1000000));
+            assertEquals(0, socks[0].sendFile(src, 1000));
+            socks[0].close();
+
+            assertEquals(400000, (long) received.get(30, TimeUnit.SECONDS));
+            byte[] expected = new byte[400003];
+            expected[0] = 1;
+            expected[1] = 2;
+            expected[2] = 3;
+            System.arraycopy(Files.readAllBytes(in), 100000, expected, 3, 400000);
+            assertArrayEquals(expected, Files.readAllBytes(out));
+        } finally {
+            socks[0].close();
+            socks[1].close();
+            Files.delete(in);
+            Files.delete(out);
+        }
+    }
+
+    @Test
+    void testConnectionClosedEarly() throws Exception {
+        Random r = new Random(3);
+        Path in = randomFile(r, 100000), out = Files.createTempFile("reldat", ".bin");
+        ReldatSocket[] socks = connect(ReldatSocket.Engine.CHANNEL);
+        try (FileChannel src = FileChannel.open(in); FileChannel dst = openOutput(out)) {
+            FutureTask<Long> received = start(() -> socks[1].receiveToFile(dst, 250000));
+
+            socks[0].sendFile(src);
+            socks[0].close();
+
+            // The part of the mapping that was not received is cut off
+            assertEquals(100000, (long) received.get(30, TimeUnit.SECONDS));
+            assertEquals(100000, dst.position());
+            assertEquals(100000, dst.size());
+            assertArrayEquals(Files.readAllBytes(in), Files.readAllBytes(out));
+        } finally {
+            socks[0].close();
+            socks[1].close();
+            Files.delete(in);
+            Files.delete(out);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package network;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A transport over a real channel that drops chosen data packets the first
+ * time they are sent, and records every data packet that goes out.
+ */
+final class LossyTransport implements DatagramTransport {
+    private final ChannelTransport channel;
+
+    /** The data packets to drop, counted in the order they are first sent */
+    private final Set<Integer> drops = new HashSet<>();
+
+    /** The sequence numbers of the data packets sent, dropped or not */
+    private final List<Integer> sent = new ArrayList<>();
+    private final Set<Integer> seen = new HashSet<>(), dropped = new HashSet<>();
+
+    /**
+     * @param drops the data packets to drop, counting from 0
+     */
+    LossyTransport(int... drops) throws IOException {
+        channel = new ChannelTransport(0, 1 << 20);
+        for (int drop : drops) this.drops.add(drop);
+    }
+
+    /**
+     * Get the sequence numbers of the data packets sent more than once.
+     */
+    synchronized Set<Integer> getResent() {
+        Set<Integer> once = new HashSet<>(), resent = new HashSet<>();
+        for (int seqNum : sent) {
+            if (!once.add(seqNum)) resent.add(seqNum);
+        }
+        return resent;
+    }
+
+    /**
+     * Get the sequence numbers of the data packets that were dropped.
+     */
+    synchronized Set<Integer> getDropped() {
+        return new HashSet<>(dropped);
+    }
+
+    @Override
+    public void send(ByteBuffer datagram, SocketAddress address) throws IOException {
+        ReldatPacket packet = ReldatPacket.decode(datagram.duplicate());
+        if (packet.getSize() > 0 && !packet.getSYN() && !packet.isProbe()) {
+            synchronized (this) {
+                sent.add(packet.getSeqNum());
+                if (seen.add(packet.getSeqNum()) && drops.contains(seen.size() - 1)) {
+                    dropped.add(packet.getSeqNum());
+                    datagram.position(datagram.limit());
+                    return;
+                }
+            }
+        }
+        channel.send(datagram, address);
+    }
+
+    @Override
+    public SocketAddress receive(ByteBuffer dst, int timeout) throws IOException {
+        return channel.receive(dst, timeout);
+    }
+
+    @Override
+    public boolean prefersDirectBuffers() {
+        return channel.prefersDirectBuffers();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return channel.getLocalSocketAddress();
+    }
+
+    @Override
+    public boolean setDontFragment() {
+        return channel.setDontFragment();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
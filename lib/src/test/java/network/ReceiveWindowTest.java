@@ -0,0 +1,121 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReceiveWindowTest {
+    /**
+     * Split a stream into packets of random sizes, mostly full ones.
+     */
+    private List<ReldatPacket> genPackets(Random r, int count, int seqNum) {
+        List<ReldatPacket> packets = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            int size = r.nextInt(4) == 0 ? r.nextInt(100) : 1000;
+            ReldatPacket packet = new ReldatPacket(new byte[size], 0, seqNum);
+            packets.add(packet);
+            seqNum = ReldatSocket.calcAck(packet);
+        }
+        return packets;
+    }
+
+    @Test
+    void testInOrderDrain() {
+        Random r = new Random(42);
+        for (int round = 0; round < 100; ++round) {
+            ReceiveWindow window = new ReceiveWindow(64);
+            window.fit(new ReldatPacket(new byte[1000], 0, 0));
+
+            // Start close to where sequence numbers wrap around
+            int start = Integer.MAX_VALUE - r.nextInt(20000);
+            List<ReldatPacket> packets = genPackets(r, 64, start);
+            List<ReldatPacket> shuffled = new ArrayList<>(packets);
+            Collections.shuffle(shuffled, r);
+
+            for (ReldatPacket packet : shuffled) assertTrue(window.add(packet));
+            for (ReldatPacket packet : shuffled) assertFalse(window.add(packet));
+            assertEquals(64, window.size());
+
+            // Everything comes back out in order, from the first packet
+            int expected = start;
+            List<ReldatPacket> removed = new ArrayList<>();
+            for (ReldatPacket packet : packets) {
+                expected = window.remove(expected, removed);
+                assertEquals(ReldatSocket.calcAck(packet), expected);
+            }
+            assertEquals(packets, removed);
+            assertTrue(window.isEmpty());
+            assertEquals(-1, window.remove(expected, removed));
+        }
+    }
+
+    @Test
+    void testRemoveKeepsOthersReachable() {
+        Random r = new Random(7);
+        ReceiveWindow window = new ReceiveWindow(16);
+        List<ReldatPacket> packets = genPackets(r, 16, 0);
+        for (ReldatPacket packet : packets) window.add(packet);
+
+        // Remove in random order, checking the rest can still be found
+        List<ReldatPacket> remaining = new ArrayList<>(packets);
+        Collections.shuffle(remaining, r);
+        while (!remaining.isEmpty()) {
+            ReldatPacket removed = remaining.remove(remaining.size() - 1);
+            List<ReldatPacket> into = new ArrayList<>();
+            assertEquals(ReldatSocket.calcAck(removed), window.remove(removed.getSeqNum(), into));
+            assertEquals(Collections.singletonList(removed), into);
+            for (ReldatPacket packet : remaining) assertFalse(window.add(packet));
+        }
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    void testEntriesWithoutPackets() {
+        Random r = new Random(3);
+        ReceiveWindow window = new ReceiveWindow(16);
+        List<ReldatPacket> packets = genPackets(r, 8, 0);
+
+        // Every other packet went to a stream, only its place is kept
+        for (int i = 0; i < packets.size(); ++i) {
+            ReldatPacket packet = packets.get(i);
+            int end = ReldatSocket.calcAck(packet);
+            assertTrue(window.add(packet.getSeqNum(), end, i % 2 == 0 ? packet : null));
+            assertFalse(window.add(packet.getSeqNum(), end, null));
+        }
+
+        List<ReldatPacket> removed = new ArrayList<>();
+        int expected = 0;
+        while (!window.isEmpty()) expected = window.remove(expected, removed);
+        assertEquals(ReldatSocket.calcAck(packets.get(7)), expected);
+        assertEquals(Arrays.asList(packets.get(0), packets.get(2), packets.get(4), packets.get(6)), removed);
+    }
+
+    @Test
+    void testSackBlocks() {
+        Random r = new Random(1);
+        ReceiveWindow window = new ReceiveWindow(32);
+        window.fit(new ReldatPacket(new byte[1000], 0, 0));
+        List<ReldatPacket> packets = genPackets(r, 20, 0);
+
+        // Packets 0, 5 and 9-10 are missing
+        for (int i = 0; i < packets.size(); ++i) {
+            if (i != 0 && i != 5 && i != 9 && i != 10) window.add(packets.get(i));
+        }
+
+        ReldatPacket ack = new ReldatPacket(0, 0);
+        window.addSackBlocks(ack, 0);
+        assertEquals(3, ack.getSackBlockCount());
+        assertEquals(packets.get(1).getSeqNum(), ack.getSackStart(0));
+        assertEquals(packets.get(5).getSeqNum(), ack.getSackEnd(0));
+        assertEquals(packets.get(6).getSeqNum(), ack.getSackStart(1));
+        assertEquals(packets.get(9).getSeqNum(), ack.getSackEnd(1));
+        assertEquals(packets.get(11).getSeqNum(), ack.getSackStart(2));
+        assertEquals(ReldatSocket.calcAck(packets.get(19)), ack.getSackEnd(2));
+    }
+}
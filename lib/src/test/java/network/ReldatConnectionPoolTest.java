@@ -0,0 +1,227 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hands out connections to a listening socket over loopback.
+ */
+class ReldatConnectionPoolTest {
+    private static final int WINDOW_SIZE = 32;
+
+    private ReldatSocket listener;
+    private SocketAddress address;
+
+    /** The connections accepted, and the bytes read from them */
+    private final List<ReldatSocket> accepted = new ArrayList<>();
+    private final BlockingQueue<Byte> received = new LinkedBlockingQueue<>();
+
+    private void listen() throws IOException {
+        listener = new ReldatSocket(0, WINDOW_SIZE);
+        int port = ((InetSocketAddress) listener.getLocalSocketAddress()).getPort();
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Close the pool, then the connections it was connected to.
+     */
+    private void shutdown(ReldatConnectionPool pool) {
+        pool.close();
+        synchronized (accepted) {
+            for (ReldatSocket conn : accepted) conn.abort();
+        }
+        listener.close();
+    }
+
+    /**
+     * Accept the next connection in the background.
+     *
+     * @param answer whether to keep reading from the connection once it is
+     *               accepted, so it answers pings
+     */
+    private FutureTask<ReldatSocket> accept(boolean answer) {
+        FutureTask<ReldatSocket> future = new FutureTask<>(() -> {
+            ReldatSocket conn = listener.accept();
+            synchronized (accepted) {
+                accepted.add(conn);
+            }
+            if (answer) start(() -> read(conn));
+            return conn;
+        });
+        start(future);
+        return future;
+    }
+
+    private void read(ReldatSocket conn) {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        try {
+            while (conn.getByteChannel().read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) received.add(buf.get());
+                buf.clear();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    private static void start(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Test
+    void testReuse() throws Exception {
+        listen();
+        ReldatConnectionPool pool = new ReldatConnectionPool(WINDOW_SIZE);
+        try {
+            FutureTask<ReldatSocket> accepting = accept(true);
+            ReldatSocket conn = pool.acquire(address);
+            accepting.get(10, TimeUnit.SECONDS);
+            assertEquals(0, pool.getIdleCount(address));
+
+            pool.release(conn);
+            assertEquals(1, pool.getIdleCount(address));
+
+            // Handed out again without a handshake, and still works
+            assertSame(conn, pool.acquire(address));
+            assertEquals(0, pool.getIdleCount(address));
+            conn.getByteChannel().write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            for (byte b = 1; b <= 3; ++b) assertEquals((Byte) b, received.poll(10, TimeUnit.SECONDS));
+            pool.release(conn);
+            assertEquals(1, accepted.size());
+        } finally {
+            shutdown(pool);
+        }
+    }
+
+    @Test
+    void testMaxIdle() throws Exception {
+        listen();
+        ReldatConnectionPool pool = new ReldatConnectionPool(WINDOW_SIZE);
+        pool.setMaxIdle(2);
+        try {
+            ReldatSocket[] conns = new ReldatSocket[3];
+            for (int i = 0; i < conns.length; ++i) {
+                FutureTask<ReldatSocket> accepting = accept(true);
+                conns[i] = pool.acquire(address);
+                accepting.get(10, TimeUnit.SECONDS);
+            }
+
+            // The one released beyond the limit is closed
+            for (ReldatSocket conn : conns) pool.release(conn);
+            assertEquals(2, pool.getIdleCount(address));
+            assertTrue(conns[0].isConnected());
+            assertTrue(conns[1].isConnected());
+            assertFalse(conns[2].isConnected());
+
+            // The one released last is handed out first
+            assertSame(conns[1], pool.acquire(address));
+            assertSame(conns[0], pool.acquire(address));
+            pool.release(conns[0]);
+            pool.release(conns[1]);
+        } finally {
+            shutdown(pool);
+        }
+    }
+
+    @Test
+    void testIdleTimeout() throws Exception {
+        listen();
+        ReldatConnectionPool pool = new ReldatConnectionPool(WINDOW_SIZE);
+        pool.setIdleTimeout(500);
+        try {
+            FutureTask<ReldatSocket> accepting = accept(true);
+            ReldatSocket conn = pool.acquire(address);
+            accepting.get(10, TimeUnit.SECONDS);
+            pool.release(conn);
+
+            // Closed by the background thread, which runs every second
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (pool.getIdleCount(address) > 0 && System.nanoTime() - deadline < 0) Thread.sleep(50);
+            assertEquals(0, pool.getIdleCount(address));
+            assertFalse(conn.isConnected());
+
+            accepting = accept(true);
+            ReldatSocket replaced = pool.acquire(address);
+            accepting.get(10, TimeUnit.SECONDS);
+            assertNotSame(conn, replaced);
+            pool.release(replaced);
+        } finally {
+            shutdown(pool);
+        }
+    }
+
+    @Test
+    void testValidation() throws Exception {
+        listen();
+        ReldatConnectionPool pool = new ReldatConnectionPool(WINDOW_SIZE);
+        pool.setValidation(0, 500);
+        try {
+            // The remote socket answers the ping
+            FutureTask<ReldatSocket> accepting = accept(true);
+            ReldatSocket conn = pool.acquire(address);
+            accepting.get(10, TimeUnit.SECONDS);
+            pool.release(conn);
+            assertSame(conn, pool.acquire(address));
+            conn.close();
+            pool.release(conn);
+            assertEquals(0, pool.getIdleCount(address));
+
+            // Nothing answers, so the connection is replaced
+            accepting = accept(false);
+            ReldatSocket silent = pool.acquire(address);
+            accepting.get(10, TimeUnit.SECONDS);
+            pool.release(silent);
+            accepting = accept(true);
+            ReldatSocket replaced = pool.acquire(address);
+            accepting.get(10, TimeUnit.SECONDS);
+            assertNotSame(silent, replaced);
+            assertFalse(silent.isConnected());
+            pool.release(replaced);
+        } finally {
+            shutdown(pool);
+        }
+    }
+
+    @Test
+    void testReleaseForeign() throws Exception {
+        listen();
+        ReldatConnectionPool pool = new ReldatConnectionPool(WINDOW_SIZE);
+        ReldatSocket foreign = new ReldatSocket(0, WINDOW_SIZE);
+        try {
+            FutureTask<ReldatSocket> accepting = accept(true);
+            foreign.connect(address);
+            accepting.get(10, TimeUnit.SECONDS);
+
+            // Rejected, and left open for whoever owns it
+            assertThrows(IllegalArgumentException.class, () -> pool.release(foreign));
+            assertTrue(foreign.isConnected());
+            assertEquals(0, pool.getIdleCount(address));
+
+            // So is a connection released twice
+            accepting = accept(true);
+            ReldatSocket conn = pool.acquire(address);
+            accepting.get(10, TimeUnit.SECONDS);
+            pool.release(conn);
+            assertThrows(IllegalArgumentException.class, () -> pool.release(conn));
+            assertEquals(1, pool.getIdleCount(address));
+        } finally {
+            foreign.close();
+            shutdown(pool);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -70,31 +71,195 @@ class ReldatPacketTest {
         assertArrayEquals(packet.getData(), deserialized.getData());
     }
 
+    @Test
+    void testBufferCodec() throws IOException {
+        ReldatPacket packet = genPacket(500, true);
+
+        // Encode into a direct buffer at an offset
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1000);
+        buffer.position(10);
+        packet.encode(buffer);
+        assertEquals(10 + packet.getEncodedSize(), buffer.position());
+
+        buffer.flip().position(10);
+        ReldatPacket decoded = ReldatPacket.decode(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(packet, decoded);
+        assertTrue(decoded.verifyChecksum());
+
+        // Payload copies straight into another buffer
+        ByteBuffer data = ByteBuffer.allocate(500);
+        assertEquals(500, decoded.copyData(data));
+        assertArrayEquals(packet.getData(), data.array());
+
+        // Truncated packets are rejected
+        ByteBuffer truncated = ByteBuffer.wrap(packet.getBytes(), 0, packet.getEncodedSize() - 1);
+        assertThrows(IOException.class, () -> ReldatPacket.decode(truncated));
+    }
+
+    @Test
+    void testSackBlocks() throws IOException {
+        ReldatPacket packet = new ReldatPacket(50, 50);
+        packet.setACK(100);
+        for (int i = 0; i < ReldatPacket.MAX_SACK_BLOCKS; ++i) packet.addSackBlock(200 * i + 200, 200 * i + 300);
+        assertThrows(IllegalStateException.class, () -> packet.addSackBlock(0, 0));
+
+        byte[] serialized = packet.getBytes();
+        assertEquals(packet.getEncodedSize(), serialized.length);
+
+        ReldatPacket deserialized = ReldatPacket.fromBytes(serialized);
+        assertEquals(packet, deserialized);
+        assertTrue(deserialized.getACK());
+        assertEquals(ReldatPacket.MAX_SACK_BLOCKS, deserialized.getSackBlockCount());
+        assertEquals(400, deserialized.getSackStart(1));
+        assertEquals(500, deserialized.getSackEnd(1));
+        assertTrue(deserialized.verifyChecksum());
+
+        // The blocks are covered by the checksum
+        serialized[serialized.length - 1] ^= 1;
+        assertFalse(ReldatPacket.fromBytes(serialized).verifyChecksum());
+    }
+
+    @Test
+    void testTimestamps() throws IOException {
+        ReldatPacket packet = genPacket(500, true);
+        packet.setTimestamps(123456, -7);
+        packet.addSackBlock(1000, 2000);
+
+        byte[] serialized = packet.getBytes();
+        assertEquals(packet.getEncodedSize(), serialized.length);
+
+        ReldatPacket deserialized = ReldatPacket.fromBytes(serialized);
+        assertEquals(packet, deserialized);
+        assertTrue(deserialized.hasTimestamps());
+        assertEquals(packet.getFIN(), deserialized.getFIN());
+        assertEquals(123456, deserialized.getTimestamp());
+        assertEquals(-7, deserialized.getTimestampEcho());
+        assertEquals(2000, deserialized.getSackEnd(0));
+        assertArrayEquals(packet.getData(), deserialized.getData());
+        assertTrue(deserialized.verifyChecksum());
+
+        // The timestamps are covered by the checksum
+        serialized[ReldatPacket.getHeaderSize() + 3] ^= 1;
+        assertFalse(ReldatPacket.fromBytes(serialized).verifyChecksum());
+    }
+
+    @Test
+    void testStream() throws IOException {
+        ReldatPacket packet = genPacket(500, false);
+        packet.setTimestamps(1, 2);
+        packet.setStream(7, 123456, true);
+        packet.addSackBlock(1000, 2000);
+
+        byte[] serialized = packet.getBytes();
+        assertEquals(packet.getEncodedSize(), serialized.length);
+
+        ReldatPacket deserialized = ReldatPacket.fromBytes(serialized);
+        assertEquals(packet, deserialized);
+        assertEquals(7, deserialized.getStreamId());
+        assertEquals(123456, deserialized.getStreamOffset());
+        assertTrue(deserialized.isStreamFin());
+        assertEquals(2, deserialized.getTimestampEcho());
+        assertEquals(2000, deserialized.getSackEnd(0));
+        assertArrayEquals(packet.getData(), deserialized.getData());
+        assertTrue(deserialized.verifyChecksum());
+
+        // Resending keeps the stream
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        packet.encode(buffer);
+        buffer.flip();
+        ReldatPacket.updateEncoded(buffer, 200, 30, 3, 4);
+        ReldatPacket updated = ReldatPacket.decode(buffer);
+        assertTrue(updated.verifyChecksum());
+        assertEquals(7, updated.getStreamId());
+        assertEquals(200, updated.getAckNum());
+
+        // Packets without a stream are on the connection's own
+        assertEquals(0, ReldatPacket.fromBytes(genPacket(10, false).getBytes()).getStreamId());
+    }
+
+    @Test
+    void testUpdateEncoded() throws IOException {
+        for (ChecksumAlgorithm algorithm : ChecksumAlgorithm.values()) {
+            ReldatPacket packet = genPacket(500, false);
+            packet.setChecksumAlgorithm(algorithm);
+            packet.setACK(100);
+            packet.setTimestamps(1, 2);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1000);
+            buffer.position(10);
+            packet.encode(buffer);
+            buffer.flip().position(10);
+
+            ReldatPacket.updateEncoded(buffer, 200, 30, 3, 4);
+            assertEquals(10, buffer.position());
+
+            ReldatPacket decoded = ReldatPacket.decode(buffer);
+            assertTrue(decoded.verifyChecksum());
+            assertEquals(200, decoded.getAckNum());
+            assertEquals(30, decoded.getWindowSize());
+            assertEquals(3, decoded.getTimestamp());
+            assertEquals(4, decoded.getTimestampEcho());
+            assertEquals(packet.getSeqNum(), decoded.getSeqNum());
+            assertArrayEquals(packet.getData(), decoded.getData());
+        }
+    }
+
     @Test
     void testChecksum() {
         // Basic test
         ReldatPacket packet = genPacket(750, false);
+        assertFalse(packet.verifyChecksum());  // Nothing calculated yet
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());
 
-        // Test update operations update checksum
+        // Test update operations drop the old checksum
         packet.setSYN();
+        assertFalse(packet.verifyChecksum());
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());
         packet.setACK((int) (Math.random() * 500));
+        assertFalse(packet.verifyChecksum());
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());
         packet.setFIN();
+        assertFalse(packet.verifyChecksum());
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());
         byte[] data = new byte[500];
         new Random().nextBytes(data);
         packet.setData(data);
+        assertFalse(packet.verifyChecksum());
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());
     }
 
+    @Test
+    void testChecksumAlgorithms() throws IOException {
+        for (ChecksumAlgorithm algorithm : ChecksumAlgorithm.values()) {
+            ReldatPacket packet = genPacket(500, true);
+            packet.setChecksumAlgorithm(algorithm);
+
+            byte[] serialized = packet.getBytes();
+            assertEquals(ReldatPacket.getHeaderSize(algorithm) + 500, serialized.length);
+
+            ReldatPacket deserialized = ReldatPacket.fromBytes(serialized);
+            assertEquals(algorithm, deserialized.getChecksumAlgorithm());
+            assertTrue(deserialized.verifyChecksum());
+
+            // Flip a bit in the payload
+            serialized[serialized.length - 1] ^= 1;
+            assertFalse(ReldatPacket.fromBytes(serialized).verifyChecksum());
+        }
+    }
+
     @Test
     void testChecksumCorrupt() throws NoSuchFieldException, IllegalAccessException {
         Random rand = new Random();
 
         // SYN
         ReldatPacket packet = genPacket(750, false);
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());  // Sanity check
         Field field = ReldatPacket.class.getDeclaredField("SYN");
         field.setAccessible(true);
@@ -103,6 +268,7 @@ class ReldatPacketTest {
 
         // ACK
         packet = genPacket(750, false);
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());  // Sanity check
         field = ReldatPacket.class.getDeclaredField("ACK");
         field.setAccessible(true);
@@ -111,6 +277,7 @@ class ReldatPacketTest {
 
         // FIN
         packet = genPacket(750, false);
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());  // Sanity check
         field = ReldatPacket.class.getDeclaredField("FIN");
         field.setAccessible(true);
@@ -119,6 +286,7 @@ class ReldatPacketTest {
 
         // size
         packet = genPacket(750, true);
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());  // Sanity check
         field = ReldatPacket.class.getDeclaredField("size");
         field.setAccessible(true);
@@ -127,6 +295,7 @@ class ReldatPacketTest {
 
         // windowSize
         packet = genPacket(750, true);
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());  // Sanity check
         field = ReldatPacket.class.getDeclaredField("windowSize");
         field.setAccessible(true);
@@ -135,6 +304,7 @@ class ReldatPacketTest {
 
         // seqNum
         packet = genPacket(750, true);
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());  // Sanity check
         field = ReldatPacket.class.getDeclaredField("seqNum");
         field.setAccessible(true);
@@ -143,6 +313,7 @@ class ReldatPacketTest {
 
         // ackNum
         packet = genPacket(750, true);
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());  // Sanity check
         field = ReldatPacket.class.getDeclaredField("ackNum");
         field.setAccessible(true);
@@ -151,6 +322,7 @@ class ReldatPacketTest {
 
         // data
         packet = genPacket(750, true);
+        packet.computeChecksum();
         assertTrue(packet.verifyChecksum());  // Sanity check
         field = ReldatPacket.class.getDeclaredField("data");
         field.setAccessible(true);
@@ -0,0 +1,86 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RttEstimatorTest {
+    private static final long MS = 1000000;
+
+    @Test
+    void testInitialTimeout() {
+        RttEstimator rtt = new RttEstimator(1000);
+        assertEquals(1000 * MS, rtt.getRto());
+        assertEquals(0, rtt.getSrtt());
+
+        // Negative samples, as from a clock going backwards, are ignored
+        rtt.sample(-5 * MS);
+        assertEquals(1000 * MS, rtt.getRto());
+        assertEquals(0, rtt.getSrtt());
+    }
+
+    @Test
+    void testSmoothing() {
+        RttEstimator rtt = new RttEstimator(1000);
+
+        // The first sample sets SRTT = R, RTTVAR = R / 2
+        rtt.sample(100 * MS);
+        assertEquals(100 * MS, rtt.getSrtt());
+        assertEquals(300 * MS, rtt.getRto());
+
+        // Then RTTVAR += (|SRTT - R| - RTTVAR) / 4 and SRTT += (R - SRTT) / 8,
+        // with RTTVAR updated from the old SRTT
+        rtt.sample(200 * MS);
+        assertEquals(112500000, rtt.getSrtt());
+        assertEquals(112500000 + 4 * 62500000, rtt.getRto());
+
+        rtt.sample(112500000);
+        assertEquals(112500000, rtt.getSrtt());
+        assertEquals(112500000 + 4 * 46875000, rtt.getRto());
+    }
+
+    @Test
+    void testKarnsRule() {
+        RttEstimator rtt = new RttEstimator(1000);
+
+        // The ACK of a retransmitted packet may be for either transmission
+        rtt.sample(0, true, 100 * MS);
+        assertEquals(0, rtt.getSrtt());
+        assertEquals(1000 * MS, rtt.getRto());
+
+        rtt.sample(50 * MS, false, 130 * MS);
+        assertEquals(80 * MS, rtt.getSrtt());
+
+        rtt.sample(200 * MS, true, 1200 * MS);
+        assertEquals(80 * MS, rtt.getSrtt());
+    }
+
+    @Test
+    void testBackoff() {
+        RttEstimator rtt = new RttEstimator(1000);
+        rtt.backoff();
+        assertEquals(2000 * MS, rtt.getRto());
+        rtt.backoff();
+        assertEquals(4000 * MS, rtt.getRto());
+
+        // A new sample resets the timeout from the estimate
+        rtt.sample(100 * MS);
+        assertEquals(300 * MS, rtt.getRto());
+
+        // Doubling stops at 60 seconds
+        for (int i = 0; i < 20; ++i) rtt.backoff();
+        assertEquals(60000 * MS, rtt.getRto());
+    }
+
+    @Test
+    void testClamping() {
+        RttEstimator rtt = new RttEstimator(1000);
+        rtt.sample(MS);
+        assertEquals(MS, rtt.getSrtt());
+        assertEquals(50 * MS, rtt.getRto());
+
+        rtt = new RttEstimator(1000);
+        rtt.sample(30000 * MS);
+        assertEquals(60000 * MS, rtt.getRto());
+    }
+}
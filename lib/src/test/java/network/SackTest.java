@@ -0,0 +1,142 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Drives the sending side of a connection with made up ACKs carrying SACK
+ * blocks, and checks which packets it resends.
+ */
+class SackTest {
+    private static final int WINDOW_SIZE = 32;
+
+    private final FakeTransport transport = new FakeTransport();
+    private ReldatSocket sock;
+
+    /** The next sequence number of the made up remote socket */
+    private int remoteSeqNum;
+
+    /** The data packets sent, in order */
+    private final List<ReldatPacket> sent = new ArrayList<>();
+
+    private static <T> FutureTask<T> start(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        Thread thread = new Thread(future);
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    /**
+     * Connect the socket to the made up remote socket with SACK, and send
+     * 6 packets of data, none of them acknowledged yet.
+     */
+    private void connectAndSend() throws Exception {
+        sock = new ReldatSocket(transport, WINDOW_SIZE);
+        FutureTask<Void> connecting = start(() -> {
+            sock.connect(FakeTransport.REMOTE);
+            return null;
+        });
+        ReldatPacket syn = transport.nextSent(5000);
+        assertTrue(syn.getSYN());
+        assertTrue(ConnectionOptions.fromPacket(syn).sack);
+
+        // A slow handshake keeps the retransmission timeout well above the
+        // time the test takes
+        Thread.sleep(500);
+        ConnectionOptions chosen = new ConnectionOptions();
+        chosen.checksums.add(ChecksumAlgorithm.DEFAULT);
+        chosen.sack = true;
+        ReldatPacket synack = new ReldatPacket(chosen.toBytes(), WINDOW_SIZE, 0);
+        synack.setSYN();
+        synack.setACK(ReldatSocket.calcAck(syn));
+        remoteSeqNum = ReldatSocket.calcAck(synack);
+        transport.deliver(synack);
+        connecting.get(5, TimeUnit.SECONDS);
+        assertTrue(transport.nextSent(5000).getACK());
+
+        start(() -> {
+            sock.send(new byte[6 * 1000]);
+            return null;
+        });
+        for (int size = 0; size < 6 * 1000; ) {
+            ReldatPacket packet = transport.nextData(5000);
+            sent.add(packet);
+            size += packet.getSize();
+        }
+        assertTrue(sent.size() >= 6);
+        assertNull(transport.nextData(100));
+    }
+
+    /**
+     * Make up an ACK of the first packet, reporting some of the others as
+     * received.
+     *
+     * @param sacked the packets to report, each in its own block
+     */
+    private ReldatPacket ack(int... sacked) {
+        ReldatPacket ack = new ReldatPacket(WINDOW_SIZE, remoteSeqNum);
+        ack.setACK(ReldatSocket.calcAck(sent.get(0)));
+        for (int i : sacked) ack.addSackBlock(sent.get(i).getSeqNum(), ReldatSocket.calcAck(sent.get(i)));
+        return ack;
+    }
+
+    private void assertResent(int... expected) throws Exception {
+        for (int i : expected) {
+            ReldatPacket packet = transport.nextData(5000);
+            assertNotNull(packet, "nothing resent");
+            assertEquals(sent.get(i).getSeqNum(), packet.getSeqNum());
+            assertArrayEquals(sent.get(i).getData(), packet.getData());
+        }
+        assertNull(transport.nextData(300), "resent more than the holes");
+    }
+
+    @Test
+    void testFastRetransmitFillsHoles() throws Exception {
+        connectAndSend();
+        try {
+            // Packets 1 and 3 were lost, the remote socket reports the others
+            // as they arrive
+            transport.deliver(ack());
+            transport.deliver(ack(2));
+            transport.deliver(ack(2, 4));
+            assertNull(transport.nextData(300));
+            transport.deliver(ack(2, 4, 5));
+
+            // Both holes are resent at once, and none of the packets reported
+            assertResent(1, 3);
+
+            // Nor once the first hole is filled
+            ReldatPacket ack = new ReldatPacket(WINDOW_SIZE, remoteSeqNum);
+            ack.setACK(ReldatSocket.calcAck(sent.get(2)));
+            ack.addSackBlock(sent.get(4).getSeqNum(), ReldatSocket.calcAck(sent.get(5)));
+            transport.deliver(ack);
+            assertNull(transport.nextData(300));
+        } finally {
+            sock.abort();
+        }
+    }
+
+    @Test
+    void testTimeoutFillsHoles() throws Exception {
+        connectAndSend();
+        try {
+            // Packets 1 and 3 were lost and 5 is still on its way, with no
+            // more ACKs to trigger a fast retransmit
+            transport.deliver(ack(2, 4));
+
+            // The timeout resends the holes below the highest block, not
+            // the packets reported nor the one after them
+            assertResent(1, 3);
+        } finally {
+            sock.abort();
+        }
+    }
+}
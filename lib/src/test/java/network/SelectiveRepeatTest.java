@@ -0,0 +1,107 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Loses packets in the middle of a transfer over loopback, and checks
+ * that only those are sent again.
+ */
+class SelectiveRepeatTest {
+    private static final int WINDOW_SIZE = 32;
+
+    private static <T> FutureTask<T> start(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        Thread thread = new Thread(future);
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    /**
+     * Send random data from a socket on a lossy transport to one accepted
+     * by a listening socket, and check it all arrives.
+     *
+     * @param sender the sending socket, not connected yet
+     */
+    private static void transfer(ReldatSocket sender) throws Exception {
+        byte[] data = new byte[40000];
+        new Random(42).nextBytes(data);
+
+        ReldatSocket listener = new ReldatSocket(0, WINDOW_SIZE, ReldatSocket.Engine.CHANNEL);
+        try {
+            FutureTask<byte[]> received = start(() -> {
+                ReldatSocket conn = listener.accept();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteBuffer buf = ByteBuffer.allocate(4096);
+                try {
+                    while (conn.getByteChannel().read(buf) != -1) {
+                        out.write(buf.array(), 0, buf.position());
+                        buf.clear();
+                    }
+                } catch (IOException e) {
+                }
+                conn.close();
+                return out.toByteArray();
+            });
+
+            int port = ((InetSocketAddress) listener.getLocalSocketAddress()).getPort();
+            sender.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            sender.send(data);
+            sender.close();
+
+            assertArrayEquals(data, received.get(30, TimeUnit.SECONDS));
+        } finally {
+            sender.close();
+            listener.close();
+        }
+    }
+
+    @Test
+    void testTimeout() throws Exception {
+        LossyTransport transport = new LossyTransport(3);
+        ReldatSocket sender = new ReldatSocket(transport, WINDOW_SIZE);
+        sender.setSackEnabled(false);
+        sender.setDuplicateAckThreshold(0);
+        transfer(sender);
+
+        // The packets after the lost one were buffered by the remote
+        // socket, and covered by the ACK of the one resent
+        assertEquals(1, transport.getDropped().size());
+        assertEquals(transport.getDropped(), transport.getResent());
+    }
+
+    @Test
+    void testFastRetransmit() throws Exception {
+        LossyTransport transport = new LossyTransport(3, 15);
+        ReldatSocket sender = new ReldatSocket(transport, WINDOW_SIZE);
+        sender.setSackEnabled(false);
+        transfer(sender);
+
+        assertEquals(2, transport.getDropped().size());
+        assertEquals(transport.getDropped(), transport.getResent());
+    }
+
+    @Test
+    void testSeveralInOneWindow() throws Exception {
+        // Without SACK, each ACK after a resend reveals the next loss
+        LossyTransport transport = new LossyTransport(2, 4, 6);
+        ReldatSocket sender = new ReldatSocket(transport, WINDOW_SIZE);
+        sender.setSackEnabled(false);
+        transfer(sender);
+
+        assertEquals(3, transport.getDropped().size());
+        assertEquals(transport.getDropped(), transport.getResent());
+    }
+}
@@ -0,0 +1,110 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+    private static final long TICK = 1000000;
+
+    /**
+     * A timer recording when it fired.
+     */
+    private static class TestTimer extends TimerWheel.Timer {
+        long deadline;
+        long firedAt = -1;
+
+        @Override
+        void onExpired(long now) {
+            firedAt = now;
+        }
+    }
+
+    @Test
+    void testFiresOnTimeAcrossTurns() {
+        Random r = new Random(42);
+        // Start close to where nanoTime wraps around
+        long start = Long.MAX_VALUE - 500 * TICK;
+        TimerWheel wheel = new TimerWheel(TICK, 64, start);
+
+        List<TestTimer> timers = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            TestTimer timer = new TestTimer();
+            timer.deadline = start + r.nextInt(1000) * TICK + r.nextInt((int) TICK);
+            wheel.schedule(timer, timer.deadline);
+            timers.add(timer);
+        }
+        assertEquals(1000, wheel.size());
+
+        // Step through time unevenly, never waiting past the next expiry
+        long now = start;
+        while (wheel.size() > 0) {
+            long next = wheel.nextExpiry();
+            assertTrue(next - now > 0);
+            now = Math.min(next, now + r.nextInt(5) * TICK + 1);
+            wheel.expire(now);
+        }
+
+        for (TestTimer timer : timers) {
+            assertTrue(timer.firedAt - timer.deadline >= 0, "fired early");
+            assertTrue(timer.firedAt - timer.deadline <= 6 * TICK, "fired late");
+            assertFalse(timer.isScheduled());
+        }
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiry());
+    }
+
+    @Test
+    void testCancelAndReschedule() {
+        TimerWheel wheel = new TimerWheel(TICK, 16, 0);
+        TestTimer a = new TestTimer(), b = new TestTimer(), c = new TestTimer();
+        wheel.schedule(a, 5 * TICK);
+        wheel.schedule(b, 5 * TICK);
+        wheel.schedule(c, 40 * TICK);
+
+        wheel.cancel(b);
+        wheel.schedule(a, 7 * TICK);
+        assertEquals(2, wheel.size());
+        assertEquals(8 * TICK, wheel.nextExpiry());
+
+        assertEquals(0, wheel.expire(6 * TICK));
+        assertEquals(1, wheel.expire(8 * TICK));
+        assertEquals(8 * TICK, a.firedAt);
+        assertEquals(-1, b.firedAt);
+
+        // Due on a later turn of the wheel, not when its bucket first comes round
+        assertEquals(0, wheel.expire(30 * TICK));
+        assertEquals(-1, c.firedAt);
+        assertEquals(1, wheel.expire(100 * TICK));
+        assertEquals(100 * TICK, c.firedAt);
+
+        // A deadline already passed fires on the next expire
+        wheel.schedule(a, 0);
+        assertEquals(1, wheel.expire(101 * TICK));
+    }
+
+    @Test
+    void testCancelFromCallback() {
+        TimerWheel wheel = new TimerWheel(TICK, 16, 0);
+        TestTimer other = new TestTimer();
+        TimerWheel.Timer canceller = new TimerWheel.Timer() {
+            @Override
+            void onExpired(long now) {
+                wheel.cancel(other);
+                wheel.schedule(this, now + TICK);
+            }
+        };
+        wheel.schedule(canceller, TICK);
+        wheel.schedule(other, TICK);
+
+        // Whichever fires first, the other one was cancelled or rescheduled
+        int fired = wheel.expire(2 * TICK);
+        assertTrue(fired == 1 || other.firedAt == 2 * TICK);
+        assertTrue(canceller.isScheduled());
+        assertFalse(other.isScheduled());
+        assertEquals(1, wheel.size());
+    }
+}
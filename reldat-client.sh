@@ -1,3 +1,3 @@
 #!/bin/sh
 
-java -classpath client/build/libs/client.jar:lib/build/libs/lib.jar Client $1 $2
+java -classpath client/build/libs/client.jar:lib/build/libs/lib.jar Client "$@"
@@ -2,5 +2,7 @@
 
 PORT=$1
 WINDOW=$2
+ENGINE=$3
+THREADS=$4
 
-java -classpath server/build/libs/server.jar:lib/build/libs/lib.jar Server $PORT $WINDOW
+java -classpath server/build/libs/server.jar:lib/build/libs/lib.jar Server $PORT $WINDOW $ENGINE $THREADS
@@ -1,27 +1,81 @@
 import network.DisconnectException;
+import network.ReldatEventLoop;
+import network.ReldatHandler;
 import network.ReldatSocket;
+import network.ReldatStream;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
 
 public class Server {
+    private static final String USAGE =
+            "USAGE: ./reldat-server.sh PORT WINDOW_SIZE [blocking|channel|eventloop [THREADS]|threads [MAX_CONNECTIONS]]";
+
+    /** The default cap on concurrent connections in threads mode */
+    private static final int MAX_CONNECTIONS = 1024;
+
+    /** The size of the chunks requests are transformed in */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** The size of a frame header: the request ID and the length of the data */
+    private static final int HEADER_SIZE = 8;
+
+    /** The longest frame accepted. The client sends frames of at most 1 MB. */
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The most response data queued on a connection or stream. Past this,
+     * requests are not read until the client has read some of the responses.
+     */
+    private static final int MAX_QUEUED = 1024 * 1024;
+
+    /** Creates the transformer for each request */
+    private static final Supplier<Transformer> TRANSFORMER = UpperCaseTransformer::new;
+
+    /** Runs the streams of all connections, each on its own thread */
+    private static final ExecutorService STREAMS = newThreadPerTaskExecutor();
+
     public static void main(String[] args) {
         int port = 0,
-                windowSize = 0;
+                windowSize = 0,
+                threads = 0;
+        String mode = "blocking";
 
         // Parse inputs
         try {
             port = Integer.parseInt(args[0]);
             windowSize = Integer.parseInt(args[1]);
+            if (args.length > 2) mode = args[2].toLowerCase();
+            if (args.length > 3) threads = Integer.parseInt(args[3]);
+            if (!mode.matches("blocking|channel|eventloop|threads") || threads < 0) {
+                throw new IllegalArgumentException();
+            }
         } catch (Exception e) {
-            System.err.println("USAGE: ./reldat-server.sh PORT WINDOW_SIZE");
+            System.err.println(USAGE);
             System.exit(1);
         }
 
+        // The event loop needs the non-blocking engine. Connection threads
+        // use the blocking one, which parks virtual threads instead of
+        // holding on to their carrier while waiting for a datagram.
+        ReldatSocket.Engine engine = mode.matches("blocking|threads")
+                ? ReldatSocket.Engine.BLOCKING : ReldatSocket.Engine.CHANNEL;
+
         // Create a new socket and listen on the port
         ReldatSocket sock = null;
         try {
-            sock = new ReldatSocket(port, windowSize);
+            sock = new ReldatSocket(port, windowSize, engine);
+
+            // Streams are served on threads, which the event loop does not use
+            sock.setStreamsEnabled(!mode.equals("eventloop"));
         } catch (IOException e) {
             System.err.println(e.getMessage());
             System.exit(1);
@@ -32,38 +86,334 @@ public class Server {
 
         System.out.println();
 
+        if (mode.equals("eventloop")) {
+            serveWithEventLoops(sock, threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        } else if (mode.equals("threads")) {
+            serveWithThreads(sock, threads > 0 ? threads : MAX_CONNECTIONS);
+        } else {
+            serveSerially(sock);
+        }
+    }
+
+    /**
+     * Handle one connection at a time on the main thread.
+     *
+     * @param sock the listening socket
+     */
+    private static void serveSerially(ReldatSocket sock) {
         // Infinite loop for accepting and handling new connections
         while (true) {
-            ReldatSocket conn = sock.accept();
-            System.out.printf("Connection accepted from %s\n", conn.getRemoteSocketAddress());
+            serveConnection(sock.accept());
+        }
+    }
 
-            while (conn.isConnected()) {
-                try {
-                    // Get length of incoming data
-                    byte[] lengthBytes = conn.receive(4);
-                    int length = ByteBuffer.wrap(lengthBytes).getInt();
+    /**
+     * Handle each connection on its own thread.
+     * <p>
+     * Virtual threads are used when the JVM supports them. Once
+     * maxConnections are being served, accepting blocks until one of them
+     * disconnects, so further connection requests wait in the socket's
+     * receive buffer and are retried by the clients.
+     *
+     * @param sock           the listening socket
+     * @param maxConnections the maximum number of concurrent connections
+     */
+    private static void serveWithThreads(ReldatSocket sock, int maxConnections) {
+        ExecutorService executor = newThreadPerTaskExecutor();
+        Semaphore permits = new Semaphore(maxConnections);
+
+        System.out.printf("Serving up to %d connections on their own threads\n", maxConnections);
+
+        while (true) {
+            permits.acquireUninterruptibly();
+
+            ReldatSocket conn = sock.accept();
+            try {
+                executor.execute(() -> {
+                    try {
+                        serveConnection(conn);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                System.err.println(e.getMessage());
+                conn.close();
+                permits.release();
+            }
+        }
+    }
 
-                    byte[] data = conn.receive(length);
-                    byte[] transformed = transformData(data);
+    /**
+     * Create an executor that starts a new virtual thread for each task,
+     * falling back to platform threads on JVMs without virtual threads.
+     *
+     * @return the executor
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
 
-                    // Calc length of response
-                    lengthBytes = ByteBuffer.allocate(4).putInt(transformed.length).array();
+    /**
+     * Handle requests on a connection until it is disconnected.
+     *
+     * @param conn the accepted connection
+     */
+    private static void serveConnection(ReldatSocket conn) {
+        System.out.printf("Connection accepted from %s\n", conn.getRemoteSocketAddress());
+        if (conn.isStreamsNegotiated()) STREAMS.execute(() -> acceptStreams(conn));
 
-                    // Send response
-                    conn.send(lengthBytes);
-                    conn.send(transformed);
-                } catch (IOException e) {
-                    System.err.println(e.getMessage());
+        // The responses are queued rather than blocking until there is
+        // room for them, so the requests after them keep being read, until
+        // the client falls too far behind reading them
+        try {
+            serveRequests(conn.getByteChannel(), frame -> {
+                conn.write(frame);
+                try {
+                    conn.awaitPendingBytes(MAX_QUEUED);
                 } catch (DisconnectException e) {
+                    throw new IOException("Connection closed");
                 }
+            });
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        conn.close();
+
+        System.out.println("Connection disconnected.");
+    }
+
+    /**
+     * Serve each stream the client opens on its own thread, until the
+     * connection is closed.
+     *
+     * @param conn the connection
+     */
+    private static void acceptStreams(ReldatSocket conn) {
+        try {
+            ReldatStream stream;
+            while ((stream = conn.acceptStream()) != null) {
+                ReldatStream accepted = stream;
+                STREAMS.execute(() -> serveStream(accepted));
             }
+        } catch (DisconnectException e) {
+        }
+    }
 
-            System.out.println("Connection disconnected.");
+    /**
+     * Answer the requests on a stream until the client ends it, then end it.
+     *
+     * @param stream the stream
+     */
+    private static void serveStream(ReldatStream stream) {
+        try (ReldatStream s = stream) {
+            serveRequests(s, frame -> {
+                s.queue(frame);
+                s.awaitQueued(MAX_QUEUED);
+            });
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
         }
     }
 
-    private static byte[] transformData(byte[] data) {
-        String string = new String(data);
-        return string.toUpperCase().getBytes();
+    /**
+     * Transform the requests read from a channel until it ends.
+     * <p>
+     * The frames of several requests can be interleaved. Each frame is
+     * transformed in chunks as it arrives and sent back straight away,
+     * framed with its request's ID, and a request's empty frame is answered
+     * with the rest of its response and an empty frame. So a request is
+     * answered as soon as it is complete, even if requests sent before it
+     * are not.
+     *
+     * @param in  where to read the requests from
+     * @param out where to send the frames of the responses
+     * @throws IOException if a frame is bad or cut short, or a response fails to send
+     */
+    private static void serveRequests(ReadableByteChannel in, FrameSink out) throws IOException {
+        Map<Integer, Transformer> requests = new HashMap<>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        while (true) {
+            header.clear();
+            if (!readFully(in, header)) {
+                if (header.position() > 0) throw new EOFException("Connection closed mid frame");
+                return;
+            }
+            header.flip();
+            int id = header.getInt(), remaining = checkLength(id, header.getInt());
+
+            if (remaining == 0) {
+                Transformer transformer = requests.remove(id);
+                if (transformer != null) respond(out, id, transformer.transform(chunk.clear().flip(), true));
+                out.write(frame(id, ByteBuffer.allocate(0)));
+                continue;
+            }
+
+            Transformer transformer = requests.computeIfAbsent(id, k -> TRANSFORMER.get());
+            while (remaining > 0) {
+                chunk.clear().limit(Math.min(CHUNK_SIZE, remaining));
+                if (!readFully(in, chunk)) throw new EOFException("Connection closed mid frame");
+                remaining -= chunk.position();
+
+                chunk.flip();
+                respond(out, id, transformer.transform(chunk, false));
+            }
+        }
+    }
+
+    /**
+     * Check the length in a frame header, before anything is done for the
+     * frame.
+     *
+     * @param id     the request ID
+     * @param length the length of the frame's data
+     * @return the length
+     * @throws IOException if it is negative or too long, which ends the connection
+     */
+    private static int checkLength(int id, int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length " + length + " for request " + id);
+        }
+        return length;
+    }
+
+    /**
+     * Read until a buffer is full.
+     *
+     * @return false if the channel ended first
+     */
+    private static boolean readFully(ReadableByteChannel in, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (in.read(dst) == -1) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send transformed data, unless there is none.
+     */
+    private static void respond(FrameSink out, int id, ByteBuffer transformed) throws IOException {
+        if (transformed.hasRemaining()) out.write(frame(id, transformed));
+    }
+
+    /**
+     * Where the frames of the responses are sent.
+     */
+    private interface FrameSink {
+        void write(ByteBuffer frame) throws IOException;
+    }
+
+    /**
+     * Handle all connections concurrently on a few event loop threads.
+     *
+     * @param sock    the listening socket
+     * @param threads the number of event loops
+     */
+    private static void serveWithEventLoops(ReldatSocket sock, int threads) {
+        System.out.printf("Serving connections on %d event loops\n", threads);
+
+        ReldatEventLoop[] loops = new ReldatEventLoop[threads];
+        try {
+            for (int i = 0; i < threads; ++i) loops[i] = new ReldatEventLoop();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        loops[0].listen(sock, TransformHandler::new, loops);
+        for (int i = 1; i < threads; ++i) {
+            new Thread(loops[i], "event-loop-" + i).start();
+        }
+        loops[0].run();
+    }
+
+    /**
+     * Frame a chunk of a response with its request's ID and its length.
+     *
+     * @param id   the request ID
+     * @param data the chunk
+     * @return the frame
+     */
+    private static ByteBuffer frame(int id, ByteBuffer data) {
+        return ByteBuffer.allocate(HEADER_SIZE + data.remaining()).putInt(id).putInt(data.remaining())
+                .put(data).flip();
+    }
+
+    /**
+     * The transform protocol for a connection on an event loop, see
+     * {@link #serveRequests(ReadableByteChannel, FrameSink)}.
+     * <p>
+     * Every frame is a 4 byte request ID and a 4 byte length followed by
+     * the data, and an empty frame ends a request or its response.
+     */
+    private static class TransformHandler implements ReldatHandler {
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+        /**
+         * The requests that have not ended yet, by ID.
+         */
+        private final Map<Integer, Transformer> requests = new HashMap<>();
+
+        /**
+         * The ID and transformer of the frame being received, null while
+         * receiving its header, and the number of its bytes that have not
+         * been read yet.
+         */
+        private int id;
+        private Transformer transformer;
+        private int remaining;
+
+        @Override
+        public void onConnect(ReldatSocket conn) {
+            System.out.printf("Connection accepted from %s\n", conn.getRemoteSocketAddress());
+        }
+
+        @Override
+        public void onData(ReldatSocket conn) throws IOException {
+            while (true) {
+                // Leave the rest of the requests unread, closing the receive
+                // window, until the ACKs of the responses drain the queue.
+                // Each ACK calls this again.
+                if (conn.getPendingBytes() > MAX_QUEUED) return;
+
+                if (transformer == null) {
+                    conn.read(header);
+                    if (header.hasRemaining()) return;
+
+                    header.flip();
+                    id = header.getInt();
+                    remaining = checkLength(id, header.getInt());
+                    header.clear();
+
+                    if (remaining == 0) {
+                        Transformer ended = requests.remove(id);
+                        if (ended != null) respond(conn::write, id, ended.transform(chunk.clear().flip(), true));
+                        conn.write(frame(id, ByteBuffer.allocate(0)));
+                        continue;
+                    }
+                    transformer = requests.computeIfAbsent(id, k -> TRANSFORMER.get());
+                    chunk.clear().limit(Math.min(CHUNK_SIZE, remaining));
+                }
+
+                remaining -= conn.read(chunk);
+                if (chunk.hasRemaining()) return;
+
+                chunk.flip();
+                respond(conn::write, id, transformer.transform(chunk, false));
+                chunk.clear().limit(Math.min(CHUNK_SIZE, remaining));
+                if (remaining == 0) transformer = null;
+            }
+        }
+
+        @Override
+        public void onDisconnect(ReldatSocket conn) {
+            System.out.printf("Connection from %s disconnected.\n", conn.getRemoteSocketAddress());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,20 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A transformation applied to a request chunk by chunk, as it arrives.
+ * <p>
+ * A new transformer is created for every request. Chunks are split at
+ * arbitrary bytes, so a transformer working on characters has to hold on
+ * to a character split between two chunks until the next one arrives.
+ */
+interface Transformer {
+    /**
+     * Transform the next chunk of the request.
+     *
+     * @param chunk the data between the buffer's position and limit, which
+     *              may be consumed
+     * @param last  whether this is the last chunk of the request
+     * @return the transformed data, possibly empty
+     */
+    ByteBuffer transform(ByteBuffer chunk, boolean last);
+}
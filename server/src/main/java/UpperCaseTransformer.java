@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Converts text, in the default charset unless another is given, to upper
+ * case.
+ * <p>
+ * Malformed input is replaced like {@code new String(byte[])} does, and
+ * the bytes of a character split between chunks are carried over to the
+ * next one.
+ */
+final class UpperCaseTransformer implements Transformer {
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+
+    /**
+     * The start of a character at the end of the last chunk, or null.
+     */
+    private ByteBuffer carry;
+
+    UpperCaseTransformer() {
+        this(Charset.defaultCharset());
+    }
+
+    /**
+     * @param charset the charset of the text
+     */
+    UpperCaseTransformer(Charset charset) {
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public ByteBuffer transform(ByteBuffer chunk, boolean last) {
+        ByteBuffer in = chunk;
+        if (carry != null) {
+            in = ByteBuffer.allocate(carry.remaining() + chunk.remaining());
+            in.put(carry).put(chunk).flip();
+            carry = null;
+        }
+
+        CharBuffer chars = CharBuffer.allocate((int) (in.remaining() * (double) decoder.maxCharsPerByte()) + 2);
+        decoder.decode(in, chars, last);
+        if (last) {
+            decoder.flush(chars);
+        } else if (in.hasRemaining()) {
+            carry = ByteBuffer.allocate(in.remaining()).put(in).flip();
+        }
+        chars.flip();
+
+        return ByteBuffer.wrap(chars.toString().toUpperCase().getBytes(charset));
+    }
+}
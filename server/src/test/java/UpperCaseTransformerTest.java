@@ -0,0 +1,73 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpperCaseTransformerTest {
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+    /**
+     * Transform data split into chunks at the given offsets, and join the
+     * transformed chunks.
+     */
+    private static byte[] transform(Transformer transformer, byte[] data, int... splits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int start = 0;
+        for (int i = 0; i <= splits.length; ++i) {
+            int end = i < splits.length ? splits[i] : data.length;
+            ByteBuffer transformed = transformer.transform(ByteBuffer.wrap(data, start, end - start), i == splits.length);
+            out.write(transformed.array(), transformed.arrayOffset() + transformed.position(), transformed.remaining());
+            start = end;
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void testCharactersSplitBetweenChunks() {
+        // Two, three and four byte characters
+        String text = "na\u00efve caf\u00e9, \u65e5\u672c\u8a9e \ud83d\ude00!";
+        byte[] data = text.getBytes(UTF_8);
+        byte[] expected = text.toUpperCase().getBytes(UTF_8);
+
+        // Every possible split in two, so every byte of every character
+        // ends up at the end of a chunk
+        for (int split = 0; split <= data.length; ++split) {
+            assertArrayEquals(expected, transform(new UpperCaseTransformer(UTF_8), data, split));
+        }
+
+        // A byte at a time
+        int[] splits = new int[data.length - 1];
+        for (int i = 0; i < splits.length; ++i) splits[i] = i + 1;
+        assertArrayEquals(expected, transform(new UpperCaseTransformer(UTF_8), data, splits));
+    }
+
+    @Test
+    void testLengthChangingMapping() {
+        // \u00df (sharp s) is two bytes and becomes SS, split between its bytes
+        byte[] data = "stra\u00dfe".getBytes(UTF_8);
+        int split = "stra".getBytes(UTF_8).length + 1;
+
+        Transformer transformer = new UpperCaseTransformer(UTF_8);
+        ByteBuffer first = transformer.transform(ByteBuffer.wrap(data, 0, split), false);
+        assertEquals("STRA", UTF_8.decode(first).toString());
+        ByteBuffer second = transformer.transform(ByteBuffer.wrap(data, split, data.length - split), true);
+        assertEquals("SSE", UTF_8.decode(second).toString());
+
+        assertArrayEquals("STRASSE STRASSE".getBytes(UTF_8),
+                transform(new UpperCaseTransformer(UTF_8), "stra\u00dfe stra\u00dfe".getBytes(UTF_8), 5, 11, 12));
+    }
+
+    @Test
+    void testMalformedInputReplaced() {
+        // A character cut short by the end of the request
+        byte[] data = {'a', (byte) 0xE6, (byte) 0x97};
+        assertEquals("A\ufffd", new String(transform(new UpperCaseTransformer(UTF_8), data, 2), UTF_8));
+
+        // An empty last chunk ends a request whose chunks all arrived
+        assertEquals(0, new UpperCaseTransformer(UTF_8).transform(ByteBuffer.allocate(0), true).remaining());
+    }
+}